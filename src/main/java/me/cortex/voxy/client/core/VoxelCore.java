@@ -10,6 +10,7 @@ import me.cortex.voxy.client.core.util.IrisUtil;
 import me.cortex.voxy.client.core.util.AbyssUtil;
 import me.cortex.voxy.client.core.util.AbyssUtil.Coords;
 import me.cortex.voxy.client.saver.ContextSelectionSystem;
+import me.cortex.voxy.common.storage.other.SectionBlobCacheAdaptor;
 import me.cortex.voxy.common.world.WorldEngine;
 import me.cortex.voxy.client.importers.WorldImporter;
 import net.minecraft.client.MinecraftClient;
@@ -254,7 +255,15 @@ public class VoxelCore {
          */
         debug.add("I/S/R tasks: " + this.world.ingestService.getTaskCount() + "/"+this.world.savingService.getTaskCount()+"/"+this.renderGen.getTaskCount());
         debug.add("Loaded cache sizes: " + Arrays.toString(this.world.getLoadedSectionCacheSizes()));
+        var retention = this.world.getSectionRetentionStats();
+        long lookups = retention[0] + retention[1];
+        debug.add("Section retention: " + retention[2] + " sections, " + (retention[3]>>20) + "MB, hit rate " + (lookups == 0 ? 0 : retention[0] * 100 / lookups) + "%");
         debug.add("Mesh cache count: " + this.renderGen.getMeshCacheCount());
+        for (var backend : this.world.storage.collectAllBackends()) {
+            if (backend instanceof SectionBlobCacheAdaptor cache) {
+                debug.add("Blob cache H/M/MB: " + cache.getHitCount() + "/" + cache.getMissCount() + "/" + (cache.getCachedBytes()>>20));
+            }
+        }
         this.renderer.addDebugData(debug);
     }
 
@@ -67,6 +67,10 @@ public class RenderDataFactory {
 
     //section is already acquired and gets released by the parent
     public BuiltSection generateMesh(WorldSection section) {
+        //Sections without any blocks never produce any geometry, skip the copy and all the axis passes
+        if (section.isEmpty()) {
+            return new BuiltSection(section.key);
+        }
         section.copyDataTo(this.sectionCache);
         this.translucentQuadCollector.clear();
         this.doubleSidedQuadCollector.clear();
@@ -85,9 +89,12 @@ public class RenderDataFactory {
         // this stops e.g. multiple layers of glass (and ocean) from having 3000 layers of quads etc
 
 
-        this.generateMeshForAxis(section, 0);//Direction.Axis.Y
-        this.generateMeshForAxis(section, 1);//Direction.Axis.Z
-        this.generateMeshForAxis(section, 2);//Direction.Axis.X
+        //Checked after the copy, a section never goes back to uniform so if its still uniform the copy is too
+        boolean uniform = section.isUniform();
+        long uniformValue = section.getUniformValue();
+        this.generateMeshForAxis(section, 0, uniform && this.interiorFacesCulled(uniformValue, 0));//Direction.Axis.Y
+        this.generateMeshForAxis(section, 1, uniform && this.interiorFacesCulled(uniformValue, 1));//Direction.Axis.Z
+        this.generateMeshForAxis(section, 2, uniform && this.interiorFacesCulled(uniformValue, 2));//Direction.Axis.X
 
         int bufferSize;
         if (this.generateMeshlets) {
@@ -306,8 +313,26 @@ public class RenderDataFactory {
     }
 
 
+    //If every face along the axis of the block is culled against the same block, a uniform section of it can only have
+    // faces on its 2 boundary layers (e.g. all stone underground)
+    private boolean interiorFacesCulled(long self, int axisId) {
+        long metadata = this.modelMan.getModelMetadata(Mapper.getBlockId(self));
+        if (ModelManager.isFluid(metadata) || ModelManager.containsFluid(metadata)) {
+            return false;
+        }
+        if (ModelManager.cullsSame(metadata)) {
+            return true;
+        }
+        for (int face = axisId<<1; face <= ((axisId<<1)|1); face++) {
+            if (ModelManager.faceExists(metadata, face) && !(ModelManager.faceCanBeOccluded(metadata, face) && ModelManager.faceOccludes(metadata, face^1))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
     //TODO: FIXME: a block can have a face even if it doesnt, cause of if it has a fluid state
-    private void generateMeshForAxis(WorldSection section, int axisId) {
+    private void generateMeshForAxis(WorldSection section, int axisId, boolean boundaryOnly) {
         int aX = axisId==2?1:0;
         int aY = axisId==0?1:0;
         int aZ = axisId==1?1:0;
@@ -318,14 +343,18 @@ public class RenderDataFactory {
         boolean obtainedOppositeSection31 = false;
 
 
-        for (int primary = 0; primary < 32; primary++) {
+        for (int primary = 0; primary < 32; primary += boundaryOnly?31:1) {
             this.negativeMesher.reset();
             this.positiveMesher.reset();
             this.negativeFluidMesher.reset();
             this.positiveFluidMesher.reset();
 
             for (int a = 0; a < 32; a++) {
+                //Columns along the axis that are all air cant have any faces
+                int occupied = section.getOccupiedColumns(axisId, a);
+                if (occupied == 0) continue;
                 for (int b = 0; b < 32; b++) {
+                    if ((occupied&(1<<b)) == 0) continue;
                     int x = axisId==2?primary:a;
                     int y = axisId==0?primary:(axisId==1?b:a);
                     int z = axisId==1?primary:b;
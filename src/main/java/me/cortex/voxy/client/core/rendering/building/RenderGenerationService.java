@@ -1,6 +1,7 @@
 package me.cortex.voxy.client.core.rendering.building;
 
 import it.unimi.dsi.fastutil.longs.Long2ObjectLinkedOpenHashMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
 import me.cortex.voxy.client.core.model.IdNotYetComputedException;
 import me.cortex.voxy.client.core.model.ModelManager;
 import me.cortex.voxy.common.world.WorldEngine;
@@ -8,8 +9,11 @@ import me.cortex.voxy.common.world.WorldSection;
 import net.minecraft.client.MinecraftClient;
 import net.minecraft.text.Text;
 
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.Consumer;
 import java.util.function.Supplier;
 import java.util.function.ToIntFunction;
@@ -18,12 +22,20 @@ import java.util.function.ToIntFunction;
 public class RenderGenerationService {
 
     public interface TaskChecker {boolean check(int lvl, int x, int y, int z);}
-    private record BuildTask(Supplier<WorldSection> sectionSupplier) {}
+    //discard releases anything the task holds when the task is dropped without being run
+    private record BuildTask(Supplier<WorldSection> sectionSupplier, Runnable discard) {}
 
     private volatile boolean running = true;
     private final Thread[] workers;
 
     private final Long2ObjectLinkedOpenHashMap<BuildTask> taskQueue = new Long2ObjectLinkedOpenHashMap<>();
+    //Tasks whose section is still being loaded on the storage io threads, guarded by taskQueue
+    private final Long2ObjectOpenHashMap<CompletableFuture<WorldSection>> pendingLoads = new Long2ObjectOpenHashMap<>();
+    //Max number of sections being loaded ahead or held by queued tasks, past this tasks load their section when a
+    // worker picks them up, so a huge queue (e.g. the initial fill) doesnt pin thousands of sections in memory that
+    // the retention tier cant evict
+    private static final int MAX_PRELOADED_SECTIONS = 512;
+    private final AtomicInteger preloaded = new AtomicInteger();
 
     private final Semaphore taskCounter = new Semaphore(0);
     private final WorldEngine world;
@@ -60,6 +72,7 @@ public class RenderGenerationService {
                 }
                 var section = task.sectionSupplier.get();
                 if (section == null) {
+                    task.discard.run();
                     continue;
                 }
                 section.assertNotFree();
@@ -127,18 +140,75 @@ public class RenderGenerationService {
                 return;
             }
         }
+        CompletableFuture<WorldSection> future;
         synchronized (this.taskQueue) {
-            this.taskQueue.computeIfAbsent(ikey, key->{
+            if (this.taskQueue.containsKey(ikey) || this.pendingLoads.containsKey(ikey)) {
+                return;
+            }
+            if (this.preloaded.get() >= MAX_PRELOADED_SECTIONS) {
+                //Too many sections already held, the worker loads this one itself so only hint the storage
+                this.taskQueue.put(ikey, new BuildTask(()->checker.check(lvl, x, y, z)?this.world.acquireIfExists(lvl, x, y, z):null, ()->{}));
                 this.taskCounter.release();
-                return new BuildTask(()->{
-                    if (checker.check(lvl, x, y, z)) {
-                        return this.world.acquireIfExists(lvl, x, y, z);
-                    } else {
+                future = null;
+            } else {
+                //The section is loaded on the storage io threads and the task only gets queued once its ready, so the
+                // workers only ever do cpu work instead of waiting on disk
+                this.preloaded.incrementAndGet();
+                future = this.world.acquireIfExistsAsync(lvl, x, y, z);
+                this.pendingLoads.put(ikey, future);
+            }
+        }
+        if (future == null) {
+            this.world.storage.prefetch(new long[]{ikey});
+            return;
+        }
+        //Neighbouring sections are likely needed for face culling, so get them warm in the storage caches
+        this.world.storage.prefetch(new long[]{
+                WorldEngine.getWorldSectionId(lvl, x-1, y, z), WorldEngine.getWorldSectionId(lvl, x+1, y, z),
+                WorldEngine.getWorldSectionId(lvl, x, y-1, z), WorldEngine.getWorldSectionId(lvl, x, y+1, z),
+                WorldEngine.getWorldSectionId(lvl, x, y, z-1), WorldEngine.getWorldSectionId(lvl, x, y, z+1)});
+        future.whenComplete((section, error) -> {
+            synchronized (this.taskQueue) {
+                if (this.pendingLoads.get(ikey) != future) {
+                    //Task was removed while loading
+                    this.preloaded.decrementAndGet();
+                    if (section != null) {
+                        section.release();
+                    }
+                    return;
+                }
+                this.pendingLoads.remove(ikey);
+                if (error != null) {
+                    this.preloaded.decrementAndGet();
+                    System.err.println(error);
+                    return;
+                }
+                if (section == null) {
+                    this.preloaded.decrementAndGet();
+                    return;
+                }
+                var loaded = new AtomicReference<>(section);
+                this.taskQueue.put(ikey, new BuildTask(()->{
+                    if (!checker.check(lvl, x, y, z)) {
                         return null;
                     }
-                });
-            });
-        }
+                    var ready = loaded.getAndSet(null);
+                    if (ready != null) {
+                        this.preloaded.decrementAndGet();
+                        return ready;
+                    }
+                    //Task was requeued after its section was used, so load it again
+                    return this.world.acquireIfExists(lvl, x, y, z);
+                }, ()->{
+                    var ready = loaded.getAndSet(null);
+                    if (ready != null) {
+                        this.preloaded.decrementAndGet();
+                        ready.release();
+                    }
+                }));
+                this.taskCounter.release();
+            }
+        });
     }
 
     //Tells the render cache that the mesh at the specified position should be cached
@@ -157,9 +227,13 @@ public class RenderGenerationService {
     }
 
     public void removeTask(int lvl, int x, int y, int z) {
+        long key = WorldEngine.getWorldSectionId(lvl, x, y, z);
         synchronized (this.taskQueue) {
-            if (this.taskQueue.remove(WorldEngine.getWorldSectionId(lvl, x, y, z)) != null) {
+            this.pendingLoads.remove(key);
+            var task = this.taskQueue.remove(key);
+            if (task != null) {
                 this.taskCounter.acquireUninterruptibly();
+                task.discard.run();
             }
         }
     }
@@ -191,8 +265,11 @@ public class RenderGenerationService {
         } catch (InterruptedException e) {throw new RuntimeException(e);}
 
         //Cleanup any remaining data
-        while (!this.taskQueue.isEmpty()) {
-            this.taskQueue.removeFirst();
+        synchronized (this.taskQueue) {
+            this.pendingLoads.clear();
+            while (!this.taskQueue.isEmpty()) {
+                this.taskQueue.removeFirst().discard.run();
+            }
         }
         this.meshCache.free();
     }
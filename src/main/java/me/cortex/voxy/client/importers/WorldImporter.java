@@ -28,6 +28,7 @@ import java.nio.ByteOrder;
 import java.nio.channels.FileChannel;
 import java.nio.file.Path;
 import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
 import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -221,10 +222,23 @@ public class WorldImporter {
         try {
             int x = chunk.getInt("xPos");
             int z = chunk.getInt("zPos");
+            var updates = new ArrayList<VoxelizedSection>();
             for (var sectionE : chunk.getList("sections", NbtElement.COMPOUND_TYPE)) {
                 var section = (NbtCompound) sectionE;
                 int y = section.getInt("Y");
-                this.importSectionNBT(x, y, z, section);
+                var update = this.importSectionNBT(x, y, z, section);
+                if (update != null) {
+                    updates.add(update);
+                }
+            }
+            //Inserted as a column so the shared parent mips are only acquired and dirtied once
+            this.world.insertUpdates(updates);
+            while (this.world.savingService.getTaskCount() > 4000) {
+                try {
+                    Thread.sleep(250);
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
             }
         } catch (Exception e) {
             System.err.println("Exception importing world chunk:");
@@ -238,9 +252,9 @@ public class WorldImporter {
 
 
     private static final Codec<PalettedContainer<BlockState>> BLOCK_STATE_CODEC = PalettedContainer.createPalettedContainerCodec(Block.STATE_IDS, BlockState.CODEC, PalettedContainer.PaletteProvider.BLOCK_STATE, Blocks.AIR.getDefaultState());
-    private void importSectionNBT(int x, int y, int z, NbtCompound section) {
+    private VoxelizedSection importSectionNBT(int x, int y, int z, NbtCompound section) {
         if (section.getCompound("block_states").isEmpty()) {
-            return;
+            return null;
         }
 
         byte[] blockLightData = section.getByteArray("BlockLight");
@@ -284,15 +298,7 @@ public class WorldImporter {
         );
 
         WorldConversionFactory.mipSection(csec, this.world.getMapper());
-
-        this.world.insertUpdate(csec);
-        while (this.world.savingService.getTaskCount() > 4000) {
-            try {
-                Thread.sleep(250);
-            } catch (InterruptedException e) {
-                throw new RuntimeException(e);
-            }
-        }
+        return csec;
     }
 
 }
@@ -2,12 +2,16 @@ package me.cortex.voxy.client.saver;
 
 import me.cortex.voxy.client.config.VoxyConfig;
 import me.cortex.voxy.common.storage.StorageBackend;
+import me.cortex.voxy.common.storage.compressors.AdaptiveCompressor;
+import me.cortex.voxy.common.storage.compressors.LZ4Compressor;
 import me.cortex.voxy.common.storage.compressors.ZSTDCompressor;
 import me.cortex.voxy.common.storage.config.ConfigBuildCtx;
 import me.cortex.voxy.common.config.Serialization;
 import me.cortex.voxy.common.storage.config.StorageConfig;
 import me.cortex.voxy.common.storage.other.CompressionStorageAdaptor;
+import me.cortex.voxy.common.storage.other.PresenceIndexAdaptor;
 import me.cortex.voxy.common.storage.rocksdb.RocksDBStorageBackend;
+import me.cortex.voxy.common.world.SaveLoadSystem;
 import me.cortex.voxy.common.world.WorldEngine;
 import net.minecraft.client.MinecraftClient;
 import net.minecraft.client.world.ClientWorld;
@@ -26,6 +30,8 @@ public class ContextSelectionSystem {
         public int minYOverride = Integer.MAX_VALUE;
         public int maxYOverride = Integer.MIN_VALUE;
         public StorageConfig storageConfig;
+        //Section integrity hash, one of mix, crc32c, xxhash64 or none (if the compressor/storage already checksums)
+        public String sectionIntegrity = SaveLoadSystem.IntegrityMode.DEFAULT.name().toLowerCase();
     }
     public static final String DEFAULT_STORAGE_CONFIG;
     static {
@@ -34,14 +40,23 @@ public class ContextSelectionSystem {
         //Load the default config
         var baseDB = new RocksDBStorageBackend.Config();
 
-        var compressor = new ZSTDCompressor.Config();
-        compressor.compressionLevel = 7;
+        //Lod 0 sections get loaded and rewritten the most so use the faster to decompress lz4 for them
+        var strongCompressor = new ZSTDCompressor.Config();
+        strongCompressor.compressionLevel = 7;
+
+        var compressor = new AdaptiveCompressor.Config();
+        compressor.fast = new LZ4Compressor.Config();
+        compressor.strong = strongCompressor;
 
         var compression = new CompressionStorageAdaptor.Config();
         compression.delegate = baseDB;
         compression.compressor = compressor;
 
-        config.storageConfig = compression;
+        //Most lookups while exploring are for sections that were never generated, so skip those before they hit the db
+        var presence = new PresenceIndexAdaptor.Config();
+        presence.delegate = compression;
+
+        config.storageConfig = presence;
         DEFAULT_STORAGE_CONFIG = Serialization.GSON.toJson(config);
 
         if (Serialization.GSON.fromJson(DEFAULT_STORAGE_CONFIG, WorldConfig.class) == null) {
@@ -52,12 +67,14 @@ public class ContextSelectionSystem {
     public static class Selection {
         private final Path selectionFolder;
         private final String worldId;
+        private final String dimension;
 
         private WorldConfig config;
 
-        public Selection(Path selectionFolder, String worldId) {
+        public Selection(Path selectionFolder, String worldId, String dimension) {
             this.selectionFolder = selectionFolder;
             this.worldId = worldId;
+            this.dimension = dimension;
             loadStorageConfigOrDefault();
         }
 
@@ -92,12 +109,15 @@ public class ContextSelectionSystem {
             var ctx = new ConfigBuildCtx();
             ctx.setProperty(ConfigBuildCtx.BASE_SAVE_PATH, this.selectionFolder.toString());
             ctx.setProperty(ConfigBuildCtx.WORLD_IDENTIFIER, this.worldId);
+            ctx.setProperty(ConfigBuildCtx.DIMENSION, this.dimension);
             ctx.pushPath(ConfigBuildCtx.DEFAULT_STORAGE_PATH);
             return this.config.storageConfig.build(ctx);
         }
 
         public WorldEngine createEngine() {
-            return new WorldEngine(this.createStorageBackend(), VoxyConfig.CONFIG.ingestThreads, VoxyConfig.CONFIG.savingThreads, 5);
+            var engine = new WorldEngine(this.createStorageBackend(), VoxyConfig.CONFIG.ingestThreads, VoxyConfig.CONFIG.savingThreads, 5, WorldEngine.DEFAULT_TRACKER_STRIPE_BITS, ((long) VoxyConfig.CONFIG.sectionRetentionMb)<<20);
+            engine.setIntegrityMode(SaveLoadSystem.IntegrityMode.byName(this.config.sectionIntegrity));
+            return engine;
         }
 
         //Saves the config for the world selection or something, need to figure out how to make it work with dimensional configs maybe?
@@ -182,6 +202,6 @@ public class ContextSelectionSystem {
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
-        return new Selection(path, getWorldId(world));
+        return new Selection(path, getWorldId(world), world.getRegistryKey().getValue().toString());
     }
 }
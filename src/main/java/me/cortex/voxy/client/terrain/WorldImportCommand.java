@@ -7,10 +7,12 @@ import com.mojang.brigadier.suggestion.Suggestions;
 import com.mojang.brigadier.suggestion.SuggestionsBuilder;
 import me.cortex.voxy.client.core.IGetVoxelCore;
 import me.cortex.voxy.client.importers.WorldImporter;
+import me.cortex.voxy.common.world.other.StorageRetrainTask;
 import net.fabricmc.fabric.api.client.command.v2.ClientCommandManager;
 import net.fabricmc.fabric.api.client.command.v2.FabricClientCommandSource;
 import net.minecraft.client.MinecraftClient;
 import net.minecraft.command.CommandSource;
+import net.minecraft.text.Text;
 
 import java.io.File;
 import java.io.IOException;
@@ -31,7 +33,38 @@ public class WorldImportCommand {
                                         .executes(WorldImportCommand::importBobby)))
                         .then(ClientCommandManager.literal("raw")
                                 .then(ClientCommandManager.argument("path", StringArgumentType.string())
-                                        .executes(WorldImportCommand::importRaw))));
+                                        .executes(WorldImportCommand::importRaw))))
+                .then(ClientCommandManager.literal("storage")
+                        .then(ClientCommandManager.literal("retrain")
+                                .executes(WorldImportCommand::retrainCompression)));
+    }
+
+    private static int retrainCompression(CommandContext<FabricClientCommandSource> ctx) {
+        var instance = MinecraftClient.getInstance();
+        var core = ((IGetVoxelCore)instance.worldRenderer).getVoxelCore();
+        if (core == null) {
+            ctx.getSource().sendError(Text.literal("Voxy is not running"));
+            return 1;
+        }
+        var world = core.getWorldEngine();
+        if (StorageRetrainTask.findDictionaryCompressors(world).isEmpty()) {
+            ctx.getSource().sendError(Text.literal("No dictionary compressor in the storage config"));
+            return 1;
+        }
+        //The player can be gone by the time a status message arrives (e.g. left the world mid retrain), its queued
+        // without waiting since the render thread joins the retrain thread on shutdown
+        boolean started = world.startStorageRetrain(msg -> MinecraftClient.getInstance().execute(()->{
+            var player = MinecraftClient.getInstance().player;
+            if (player != null) {
+                player.sendMessage(Text.literal(msg));
+            }
+        }));
+        if (!started) {
+            ctx.getSource().sendError(Text.literal("Storage retrain is already running"));
+            return 1;
+        }
+        ctx.getSource().sendFeedback(Text.literal("Retraining compression dictionary from stored sections"));
+        return 0;
     }
 
 
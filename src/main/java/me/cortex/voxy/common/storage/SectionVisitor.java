@@ -0,0 +1,11 @@
+package me.cortex.voxy.common.storage;
+
+import java.nio.ByteBuffer;
+
+@FunctionalInterface
+public interface SectionVisitor {
+    //Called for each stored section, data is null if the iteration was started without data, otherwise it is only valid
+    // for the duration of the call (the backend frees it afterwards, copy it if its needed later)
+    //Return false to stop the iteration
+    boolean visit(long key, ByteBuffer data);
+}
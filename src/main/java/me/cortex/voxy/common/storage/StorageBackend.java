@@ -1,10 +1,12 @@
 package me.cortex.voxy.common.storage;
 
 import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap;
+import me.cortex.voxy.common.world.WorldEngine;
 
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
 public abstract class StorageBackend {
 
@@ -14,6 +16,104 @@ public abstract class StorageBackend {
 
     public abstract void deleteSectionData(long key);
 
+    //Fetches multiple sections at once, the returned array is index aligned with the keys and contains null for
+    // sections that dont exist, backends that can do this in a single transaction/round trip should override this
+    public ByteBuffer[] getSectionDataBatch(long[] keys) {
+        var out = new ByteBuffer[keys.length];
+        for (int i = 0; i < keys.length; i++) {
+            out[i] = this.getSectionData(keys[i]);
+        }
+        return out;
+    }
+
+    //Sets multiple sections at once, same ownership semantics as setSectionData (the data is not freed by the backend)
+    public void setSectionDataBatch(long[] keys, ByteBuffer[] data) {
+        if (keys.length != data.length) {
+            throw new IllegalArgumentException("Key count does not match data count");
+        }
+        for (int i = 0; i < keys.length; i++) {
+            this.setSectionData(keys[i], data[i]);
+        }
+    }
+
+    //Returns false only if the section is definitely not stored, so the read can be skipped for sections that were
+    // never written, backends without a presence index always return true
+    public boolean mayContainSection(long key) {
+        return true;
+    }
+
+    //Reads the section on the shared storage io threads, the future completes with null if the section doesnt exist,
+    // the caller owns the returned buffer the same as with getSectionData
+    public CompletableFuture<ByteBuffer> getSectionDataAsync(long key) {
+        return StorageIOExecutor.INSTANCE.read(this, key);
+    }
+
+    //Hint that the sections are going to be read soon, the default reads them in the background so they are in any
+    // caches of the backend (block cache, page cache, etc) by the time they are needed
+    public void prefetch(long[] keys) {
+        StorageIOExecutor.INSTANCE.prefetch(this, keys);
+    }
+
+    //Visits all stored sections with a key between minKey and maxKey (inclusive, compared unsigned), sections are
+    // streamed so memory use stays bounded no matter how large the store is, the visit order is backend specific
+    //Returns false if the visitor stopped the iteration
+    public abstract boolean iterateSections(long minKey, long maxKey, boolean withData, SectionVisitor visitor);
+
+    public final boolean iterateAllSections(boolean withData, SectionVisitor visitor) {
+        return this.iterateSections(0, -1L, withData, visitor);
+    }
+
+    //Visits all stored sections of the lod level inside the inclusive section coordinate box, the keys are in the
+    // WorldEngine.getWorldSectionId format, adaptors that store keys in a different format override this
+    public boolean forEachSection(int lvl, int minX, int maxX, int minY, int maxY, int minZ, int maxZ, boolean withData, SectionVisitor visitor) {
+        SectionVisitor filter = (key, data) -> {
+            int x = WorldEngine.getX(key);
+            int y = WorldEngine.getY(key);
+            int z = WorldEngine.getZ(key);
+            if (x < minX || maxX < x || y < minY || maxY < y || z < minZ || maxZ < z) {
+                return true;
+            }
+            return visitor.visit(key, data);
+        };
+        //z is the most significant coordinate followed by y, each contiguous run of z (and y when z is narrow enough
+        // to do a range per z slice) becomes a single key range, negative coordinates wrap so the runs are split by sign
+        for (var zSpan : signSplit(minZ, maxZ)) {
+            if (zSpan[1] - zSpan[0] < MAX_RANGE_SLICES) {
+                for (int z = zSpan[0]; z <= zSpan[1]; z++) {
+                    for (var ySpan : signSplit(minY, maxY)) {
+                        if (!this.iterateSections(WorldEngine.getWorldSectionId(lvl, 0, ySpan[0], z), WorldEngine.getWorldSectionId(lvl, -1, ySpan[1], z), withData, filter)) {
+                            return false;
+                        }
+                    }
+                }
+            } else {
+                if (!this.iterateSections(WorldEngine.getWorldSectionId(lvl, 0, 0, zSpan[0]), WorldEngine.getWorldSectionId(lvl, -1, -1, zSpan[1]), withData, filter)) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    //Max number of per slice range scans a box gets split into before just scanning the whole span
+    protected static final int MAX_RANGE_SLICES = 1024;
+
+    //Splits an inclusive coordinate range into runs that dont cross from negative to positive, since once masked
+    // into a key negative coordinates end up above the positive ones
+    protected static int[][] signSplit(int min, int max) {
+        if (max < min) {
+            return new int[0][];
+        }
+        if (min < 0 && 0 <= max) {
+            return new int[][]{{min, -1}, {0, max}};
+        }
+        return new int[][]{{min, max}};
+    }
+
+    protected static boolean inRange(long key, long minKey, long maxKey) {
+        return Long.compareUnsigned(minKey, key) <= 0 && Long.compareUnsigned(key, maxKey) <= 0;
+    }
+
     public abstract void putIdMapping(int id, ByteBuffer data);
 
     public abstract Int2ObjectOpenHashMap<byte[]> getIdMappingsData();
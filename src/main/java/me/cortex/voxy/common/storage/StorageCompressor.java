@@ -3,9 +3,28 @@ package me.cortex.voxy.common.storage;
 import java.nio.ByteBuffer;
 
 public interface StorageCompressor {
+    //Upper bound of a serialized section
+    int MAX_SECTION_SIZE = 32*32*32*8*2;
+
+    //Called with the backend the compressed data is stored in, compressors that need to persist extra state
+    // (e.g. dictionaries) can store it as id mappings with the COMPRESSOR_MAPPING_TYPE
+    default void attach(StorageBackend storage) {}
+
     ByteBuffer compress(ByteBuffer saveData);
 
     ByteBuffer decompress(ByteBuffer saveData);
 
+    //Compresses the data of a specific section, the key allows compressors to pick settings per section (e.g. by lod level)
+    default ByteBuffer compress(long key, ByteBuffer saveData) {
+        return this.compress(saveData);
+    }
+
+    //Unique id of the codec used to tag blobs when multiple codecs are mixed in a single database, must fit in a byte,
+    // never be 0 or 0x28 (first byte of the zstd frame magic, so untagged zstd blobs can still be detected)
+    // compressors that cant be mixed return -1
+    default int getCodecTag() {
+        return -1;
+    }
+
     void close();
 }
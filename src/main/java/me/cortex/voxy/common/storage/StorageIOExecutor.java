@@ -0,0 +1,160 @@
+package me.cortex.voxy.common.storage;
+
+import it.unimi.dsi.fastutil.longs.Long2ObjectLinkedOpenHashMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.objects.Reference2IntOpenHashMap;
+import me.cortex.voxy.common.util.BufferPool;
+import org.lwjgl.system.MemoryUtil;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+//Shared io threads backing the async storage api, reads are queued per backend and a worker takes all the queued
+// reads of a backend (up to MAX_BATCH) and does them as a single batch read sorted by key, so requests for nearby
+// sections that come in around the same time end up in the same transaction/round trip
+//Duplicate requests for a key that is still queued are merged into the same read
+public class StorageIOExecutor {
+    private static final int MAX_BATCH = 64;
+    public static final StorageIOExecutor INSTANCE = new StorageIOExecutor(Math.max(2, Runtime.getRuntime().availableProcessors()/4));
+
+    private static final class Request {
+        //Empty for prefetch only requests, the data is then just dropped
+        private final List<CompletableFuture<ByteBuffer>> futures = new ArrayList<>(1);
+    }
+
+    //Insertion ordered so backends get served round robin
+    private final LinkedHashMap<StorageBackend, Long2ObjectLinkedOpenHashMap<Request>> queues = new LinkedHashMap<>();
+    private final Reference2IntOpenHashMap<StorageBackend> inflight = new Reference2IntOpenHashMap<>();
+    private final Thread[] workers;
+
+    private StorageIOExecutor(int threads) {
+        this.workers = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            this.workers[i] = new Thread(this::worker);
+            this.workers[i].setName("Storage io #" + i);
+            this.workers[i].setDaemon(true);
+            this.workers[i].start();
+        }
+    }
+
+    public CompletableFuture<ByteBuffer> read(StorageBackend backend, long key) {
+        var future = new CompletableFuture<ByteBuffer>();
+        synchronized (this.queues) {
+            this.queue(backend, key).futures.add(future);
+            this.queues.notifyAll();
+        }
+        return future;
+    }
+
+    public void prefetch(StorageBackend backend, long[] keys) {
+        synchronized (this.queues) {
+            for (long key : keys) {
+                this.queue(backend, key);
+            }
+            this.queues.notifyAll();
+        }
+    }
+
+    private Request queue(StorageBackend backend, long key) {
+        return this.queues.computeIfAbsent(backend, a->new Long2ObjectLinkedOpenHashMap<>()).computeIfAbsent(key, a->new Request());
+    }
+
+    //Blocks until all the reads queued for the backend are done, needs to be called before the backend is closed
+    public void awaitIdle(StorageBackend backend) {
+        synchronized (this.queues) {
+            while (this.queues.containsKey(backend) || this.inflight.getInt(backend) != 0) {
+                try {
+                    this.queues.wait();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        }
+    }
+
+    private void worker() {
+        while (true) {
+            StorageBackend backend;
+            long[] keys;
+            Request[] requests;
+            synchronized (this.queues) {
+                while (this.queues.isEmpty()) {
+                    try {
+                        this.queues.wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                var entry = this.queues.entrySet().iterator().next();
+                backend = entry.getKey();
+                var queue = entry.getValue();
+                //Take the backend out and put it back at the end if it still has requests left
+                this.queues.remove(backend);
+                int count = Math.min(queue.size(), MAX_BATCH);
+                keys = new long[count];
+                var taken = new Long2ObjectOpenHashMap<Request>(count);
+                for (int i = 0; i < count; i++) {
+                    keys[i] = queue.firstLongKey();
+                    taken.put(keys[i], queue.removeFirst());
+                }
+                if (!queue.isEmpty()) {
+                    this.queues.put(backend, queue);
+                }
+                Arrays.sort(keys);
+                requests = new Request[count];
+                for (int i = 0; i < count; i++) {
+                    requests[i] = taken.get(keys[i]);
+                }
+                this.inflight.addTo(backend, 1);
+                this.queues.notifyAll();
+            }
+
+            try {
+                ByteBuffer[] results = null;
+                Throwable error = null;
+                try {
+                    results = backend.getSectionDataBatch(keys);
+                } catch (Throwable e) {
+                    error = e;
+                }
+                for (int i = 0; i < keys.length; i++) {
+                    var futures = requests[i].futures;
+                    if (error != null) {
+                        for (var future : futures) {
+                            future.completeExceptionally(error);
+                        }
+                        continue;
+                    }
+                    var data = results[i];
+                    if (futures.isEmpty()) {
+                        if (data != null) {
+                            BufferPool.release(data);
+                        }
+                        continue;
+                    }
+                    //Every future owns its buffer, so duplicates get a copy
+                    for (int j = 1; j < futures.size(); j++) {
+                        ByteBuffer copy = null;
+                        if (data != null) {
+                            copy = MemoryUtil.memAlloc(data.remaining());
+                            MemoryUtil.memCopy(data, copy);
+                        }
+                        futures.get(j).complete(copy);
+                    }
+                    futures.get(0).complete(data);
+                }
+            } finally {
+                synchronized (this.queues) {
+                    if (this.inflight.addTo(backend, -1) == 1) {
+                        this.inflight.removeInt(backend);
+                    }
+                    this.queues.notifyAll();
+                }
+            }
+        }
+    }
+}
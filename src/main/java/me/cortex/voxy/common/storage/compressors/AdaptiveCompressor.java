@@ -0,0 +1,153 @@
+package me.cortex.voxy.common.storage.compressors;
+
+import me.cortex.voxy.common.storage.StorageBackend;
+import me.cortex.voxy.common.storage.StorageCompressor;
+import me.cortex.voxy.common.storage.config.CompressorConfig;
+import me.cortex.voxy.common.storage.config.ConfigBuildCtx;
+import me.cortex.voxy.common.util.BufferPool;
+import me.cortex.voxy.common.world.WorldEngine;
+import org.lwjgl.system.MemoryUtil;
+
+import java.nio.ByteBuffer;
+
+//Picks a codec per section, hot low lod sections (which get loaded and rewritten the most) use the fast codec while
+// the rest use the strong codec, every blob is prefixed with the codec tag so codecs can be mixed in one database
+//Untagged zstd blobs (written by a plain zstd compressor before switching to this) are detected by the zstd frame magic
+public class AdaptiveCompressor implements StorageCompressor {
+    private static final int ZSTD_MAGIC = 0xFD2FB528;
+
+    private final StorageCompressor fast;
+    private final StorageCompressor strong;
+    private final int fastMaxLevel;
+    private final float fastMaxRatio;
+    //Used to read zstd frames if neither of the codecs is zstd based
+    private ZSTDCompressor zstdFallback;
+
+    public AdaptiveCompressor(StorageCompressor fast, StorageCompressor strong, int fastMaxLevel, float fastMaxRatio) {
+        checkTag(fast);
+        checkTag(strong);
+        if (fast.getCodecTag() == strong.getCodecTag()) {
+            throw new IllegalArgumentException("Fast and strong codec must be different codecs");
+        }
+        this.fast = fast;
+        this.strong = strong;
+        this.fastMaxLevel = fastMaxLevel;
+        this.fastMaxRatio = fastMaxRatio;
+    }
+
+    private static void checkTag(StorageCompressor compressor) {
+        int tag = compressor.getCodecTag();
+        if (tag <= 0 || 0xFF < tag || tag == (ZSTD_MAGIC&0xFF)) {
+            throw new IllegalArgumentException("Compressor " + compressor.getClass().getSimpleName() + " cannot be used in an adaptive compressor");
+        }
+    }
+
+    @Override
+    public void attach(StorageBackend storage) {
+        this.fast.attach(storage);
+        this.strong.attach(storage);
+    }
+
+    private static ByteBuffer tag(StorageCompressor codec, ByteBuffer compressed) {
+        var tagged = BufferPool.acquire(compressed.remaining() + 1);
+        tagged.put((byte) codec.getCodecTag());
+        tagged.put(compressed);
+        tagged.rewind();
+        BufferPool.release(compressed);
+        return tagged;
+    }
+
+    @Override
+    public ByteBuffer compress(ByteBuffer saveData) {
+        return tag(this.strong, this.strong.compress(saveData));
+    }
+
+    @Override
+    public ByteBuffer compress(long key, ByteBuffer saveData) {
+        if (this.fastMaxLevel < WorldEngine.getLevel(key)) {
+            return tag(this.strong, this.strong.compress(key, saveData));
+        }
+        int rawSize = saveData.remaining();
+        var fastData = this.fast.compress(key, saveData.duplicate());
+        if (fastData.remaining() <= rawSize * this.fastMaxRatio) {
+            return tag(this.fast, fastData);
+        }
+        //The fast codec does badly on this section, so its worth spending the time on the strong one, keep whichever is smaller
+        var strongData = this.strong.compress(key, saveData);
+        if (strongData.remaining() < fastData.remaining()) {
+            BufferPool.release(fastData);
+            return tag(this.strong, strongData);
+        } else {
+            BufferPool.release(strongData);
+            return tag(this.fast, fastData);
+        }
+    }
+
+    private StorageCompressor zstdDecompressor() {
+        if (isZstd(this.strong)) {
+            return this.strong;
+        }
+        if (isZstd(this.fast)) {
+            return this.fast;
+        }
+        synchronized (this) {
+            if (this.zstdFallback == null) {
+                this.zstdFallback = new ZSTDCompressor(0);
+            }
+            return this.zstdFallback;
+        }
+    }
+
+    private static boolean isZstd(StorageCompressor compressor) {
+        return compressor.getCodecTag() == ZSTDCompressor.CODEC_TAG || compressor.getCodecTag() == ZSTDDictCompressor.CODEC_TAG;
+    }
+
+    @Override
+    public ByteBuffer decompress(ByteBuffer saveData) {
+        if (4 <= saveData.remaining() && MemoryUtil.memGetInt(MemoryUtil.memAddress(saveData)) == ZSTD_MAGIC) {
+            return this.zstdDecompressor().decompress(saveData);
+        }
+        int tag = Byte.toUnsignedInt(saveData.get(saveData.position()));
+        var payload = saveData.slice(saveData.position() + 1, saveData.remaining() - 1);
+        if (tag == this.fast.getCodecTag()) {
+            return this.fast.decompress(payload);
+        }
+        if (tag == this.strong.getCodecTag()) {
+            return this.strong.decompress(payload);
+        }
+        if (tag == ZSTDCompressor.CODEC_TAG) {
+            //Plain zstd frames can be read by any zstd based codec
+            return this.zstdDecompressor().decompress(payload);
+        }
+        throw new IllegalStateException("Section was compressed with codec " + tag + " which is not in the adaptive compressor config");
+    }
+
+    @Override
+    public void close() {
+        this.fast.close();
+        this.strong.close();
+        synchronized (this) {
+            if (this.zstdFallback != null) {
+                this.zstdFallback.close();
+            }
+        }
+    }
+
+    public static class Config extends CompressorConfig {
+        public CompressorConfig fast;
+        public CompressorConfig strong;
+        //Sections with a lod level up to and including this use the fast codec
+        public int fastMaxLevel = 0;
+        //If the fast codec cant get the section below this fraction of its raw size the strong codec is tried as well
+        public float fastMaxRatio = 0.5f;
+
+        @Override
+        public StorageCompressor build(ConfigBuildCtx ctx) {
+            return new AdaptiveCompressor(this.fast.build(ctx), this.strong.build(ctx), this.fastMaxLevel, this.fastMaxRatio);
+        }
+
+        public static String getConfigTypeName() {
+            return "Adaptive";
+        }
+    }
+}
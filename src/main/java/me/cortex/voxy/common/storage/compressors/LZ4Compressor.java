@@ -0,0 +1,84 @@
+package me.cortex.voxy.common.storage.compressors;
+
+import me.cortex.voxy.common.storage.StorageCompressor;
+import me.cortex.voxy.common.storage.config.CompressorConfig;
+import me.cortex.voxy.common.storage.config.ConfigBuildCtx;
+import me.cortex.voxy.common.util.BufferPool;
+import org.lwjgl.system.MemoryUtil;
+
+import java.nio.ByteBuffer;
+
+import static org.lwjgl.util.lz4.LZ4.*;
+import static org.lwjgl.util.lz4.LZ4HC.*;
+
+//Much faster to decompress than zstd at the cost of a worse ratio, good for sections that get loaded and rewritten a lot
+// the blob is the raw size as an int followed by a raw lz4 block
+public class LZ4Compressor implements StorageCompressor {
+    public static final int CODEC_TAG = 2;
+
+    //0 uses the default fast compressor, anything higher uses lz4 hc at that level
+    private final int level;
+
+    public LZ4Compressor(int level) {
+        this.level = level;
+    }
+
+    @Override
+    public ByteBuffer compress(ByteBuffer saveData) {
+        int rawSize = saveData.remaining();
+        var compressedData = BufferPool.acquire(LZ4_COMPRESSBOUND(rawSize) + 4);
+        MemoryUtil.memPutInt(MemoryUtil.memAddress(compressedData), rawSize);
+        compressedData.position(4);
+        int compressedSize;
+        if (this.level <= 0) {
+            compressedSize = LZ4_compress_default(saveData, compressedData);
+        } else {
+            compressedSize = LZ4_compress_HC(saveData, compressedData, this.level);
+        }
+        if (compressedSize <= 0) {
+            BufferPool.release(compressedData);
+            throw new IllegalStateException("Failed to lz4 compress section");
+        }
+        compressedData.limit(compressedSize + 4);
+        compressedData.rewind();
+        return compressedData;
+    }
+
+    @Override
+    public ByteBuffer decompress(ByteBuffer saveData) {
+        int rawSize = MemoryUtil.memGetInt(MemoryUtil.memAddress(saveData));
+        if (rawSize < 0 || MAX_SECTION_SIZE < rawSize) {
+            throw new IllegalStateException("Invalid lz4 section size " + rawSize);
+        }
+        var decompressed = BufferPool.acquire(rawSize);
+        int size = LZ4_decompress_safe(saveData.slice(saveData.position() + 4, saveData.remaining() - 4), decompressed);
+        if (size != rawSize) {
+            BufferPool.release(decompressed);
+            throw new IllegalStateException("Failed to lz4 decompress section, got " + size + " bytes expected " + rawSize);
+        }
+        return decompressed;
+    }
+
+    @Override
+    public int getCodecTag() {
+        return CODEC_TAG;
+    }
+
+    @Override
+    public void close() {
+
+    }
+
+    public static class Config extends CompressorConfig {
+        public int compressionLevel;
+
+        @Override
+        public StorageCompressor build(ConfigBuildCtx ctx) {
+            return new LZ4Compressor(this.compressionLevel);
+        }
+
+        public static String getConfigTypeName() {
+            return "LZ4";
+        }
+    }
+}
@@ -3,14 +3,17 @@ package me.cortex.voxy.common.storage.compressors;
 import me.cortex.voxy.common.storage.StorageCompressor;
 import me.cortex.voxy.common.storage.config.CompressorConfig;
 import me.cortex.voxy.common.storage.config.ConfigBuildCtx;
-import org.lwjgl.system.MemoryUtil;
+import me.cortex.voxy.common.util.BufferPool;
 
 import java.nio.ByteBuffer;
 
 import static org.lwjgl.util.zstd.Zstd.*;
 
 public class ZSTDCompressor implements StorageCompressor {
+    public static final int CODEC_TAG = 1;
+
     private final int level;
+    private final ZSTDThreadContexts contexts = new ZSTDThreadContexts();
 
     public ZSTDCompressor(int level) {
         this.level = level;
@@ -18,8 +21,12 @@ public class ZSTDCompressor implements StorageCompressor {
 
     @Override
     public ByteBuffer compress(ByteBuffer saveData) {
-        ByteBuffer compressedData  = MemoryUtil.memAlloc((int)ZSTD_COMPRESSBOUND(saveData.remaining()));
-        long compressedSize = ZSTD_compress(compressedData, saveData, this.level);
+        ByteBuffer compressedData = BufferPool.acquire((int)ZSTD_COMPRESSBOUND(saveData.remaining()));
+        long compressedSize = ZSTD_compressCCtx(this.contexts.cctx(), compressedData, saveData, this.level);
+        if (ZSTD_isError(compressedSize)) {
+            BufferPool.release(compressedData);
+            throw new IllegalStateException("Failed to compress section: " + ZSTD_getErrorName(compressedSize));
+        }
         compressedData.limit((int) compressedSize);
         compressedData.rewind();
         return compressedData;
@@ -27,15 +34,24 @@ public class ZSTDCompressor implements StorageCompressor {
 
     @Override
     public ByteBuffer decompress(ByteBuffer saveData) {
-        var decompressed = MemoryUtil.memAlloc(32*32*32*8*2);
-        long size = ZSTD_decompress(decompressed, saveData);
+        var decompressed = BufferPool.acquire(ZSTDThreadContexts.decompressedSize(saveData));
+        long size = ZSTD_decompressDCtx(this.contexts.dctx(), decompressed, saveData);
+        if (ZSTD_isError(size)) {
+            BufferPool.release(decompressed);
+            throw new IllegalStateException("Failed to decompress section: " + ZSTD_getErrorName(size));
+        }
         decompressed.limit((int) size);
         return decompressed;
     }
 
     @Override
-    public void close() {
+    public int getCodecTag() {
+        return CODEC_TAG;
+    }
 
+    @Override
+    public void close() {
+        this.contexts.close();
     }
 
     public static class Config extends CompressorConfig {
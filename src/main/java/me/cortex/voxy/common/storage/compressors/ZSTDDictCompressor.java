@@ -0,0 +1,272 @@
+package me.cortex.voxy.common.storage.compressors;
+
+import it.unimi.dsi.fastutil.ints.Int2LongOpenHashMap;
+import me.cortex.voxy.common.storage.StorageBackend;
+import me.cortex.voxy.common.storage.StorageCompressor;
+import me.cortex.voxy.common.storage.config.CompressorConfig;
+import me.cortex.voxy.common.storage.config.ConfigBuildCtx;
+import me.cortex.voxy.common.storage.other.CompressionStorageAdaptor;
+import me.cortex.voxy.common.util.BufferPool;
+import org.lwjgl.PointerBuffer;
+import org.lwjgl.system.MemoryUtil;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.lwjgl.util.zstd.Zdict.*;
+import static org.lwjgl.util.zstd.Zstd.*;
+
+//ZSTD compressor that uses a dictionary trained from the sections being saved, since every section starts with
+// a very similar palette header and index array a shared dictionary compresses them a lot better than compressing
+// each one on its own
+//The dictionaries are stored as id mappings in the backend under a version id, all versions are kept loaded so that
+// sections written with an older dictionary (or none at all) can still be read
+public class ZSTDDictCompressor implements StorageCompressor {
+    public static final int CODEC_TAG = 3;
+
+    private static final class Dictionary {
+        private final int version;
+        private final long cdict;
+
+        private Dictionary(int version, long cdict) {
+            this.version = version;
+            this.cdict = cdict;
+        }
+    }
+
+    private final int level;
+    private final int dictionarySize;
+    private final int trainingSamples;
+    private final int sampleRate;
+
+    private StorageBackend storage;
+    private final ZSTDThreadContexts contexts = new ZSTDThreadContexts();
+
+    //Dictionary currently used for compression, null until one has been trained
+    private volatile Dictionary current;
+    //dictId -> ZSTD_DDict, copy on write so decompression doesnt need to lock
+    private volatile Int2LongOpenHashMap ddicts = new Int2LongOpenHashMap();
+    private final List<Long> cdicts = new ArrayList<>();
+
+    //Guarded by this.samples
+    private final List<byte[]> samples = new ArrayList<>();
+    private boolean collecting;
+    private int sampleCounter;
+
+    public ZSTDDictCompressor(int level, int dictionarySize, int trainingSamples, int sampleRate) {
+        this.level = level;
+        this.dictionarySize = dictionarySize;
+        this.trainingSamples = trainingSamples;
+        this.sampleRate = Math.max(1, sampleRate);
+    }
+
+    private static int mappingId(int version) {
+        return version | (CompressionStorageAdaptor.COMPRESSOR_MAPPING_TYPE<<30);
+    }
+
+    @Override
+    public void attach(StorageBackend storage) {
+        this.storage = storage;
+        Dictionary newest = null;
+        for (var entry : storage.getIdMappingsData().int2ObjectEntrySet()) {
+            int id = entry.getIntKey();
+            if ((id>>>30) != CompressionStorageAdaptor.COMPRESSOR_MAPPING_TYPE) {
+                continue;
+            }
+            var dict = this.load(id&((1<<30)-1), entry.getValue());
+            if (newest == null || newest.version < dict.version) {
+                newest = dict;
+            }
+        }
+        this.current = newest;
+        synchronized (this.samples) {
+            this.collecting = newest == null;
+        }
+    }
+
+    //Creates the native dictionaries for the serialized dictionary, must be called before the dictionary is used
+    private synchronized Dictionary load(int version, byte[] data) {
+        var buffer = MemoryUtil.memAlloc(data.length);
+        try {
+            buffer.put(data).rewind();
+            int dictId = ZDICT_getDictID(buffer);
+            long cdict = ZSTD_createCDict(buffer, this.level);
+            long ddict = ZSTD_createDDict(buffer);
+            if (cdict == 0 || ddict == 0) {
+                throw new IllegalStateException("Failed to create zstd dictionary version " + version);
+            }
+            this.cdicts.add(cdict);
+            var ddicts = new Int2LongOpenHashMap(this.ddicts);
+            long old = ddicts.put(dictId, ddict);
+            if (old != 0) {
+                ZSTD_freeDDict(old);
+            }
+            this.ddicts = ddicts;
+            return new Dictionary(version, cdict);
+        } finally {
+            MemoryUtil.memFree(buffer);
+        }
+    }
+
+    private void sample(ByteBuffer saveData) {
+        List<byte[]> toTrain = null;
+        synchronized (this.samples) {
+            if (!this.collecting || (this.sampleCounter++ % this.sampleRate) != 0) {
+                return;
+            }
+            var sample = new byte[saveData.remaining()];
+            saveData.get(saveData.position(), sample);
+            this.samples.add(sample);
+            if (this.trainingSamples <= this.samples.size()) {
+                //Only one thread trains, the rest just keep compressing with the old dictionary
+                toTrain = new ArrayList<>(this.samples);
+                this.samples.clear();
+                this.collecting = false;
+            }
+        }
+        if (toTrain != null) {
+            this.train(toTrain);
+        }
+    }
+
+    //Trains a new dictionary from the samples, stores it in the backend and switches compression over to it
+    public void train(List<byte[]> samples) {
+        if (this.storage == null) {
+            throw new IllegalStateException("Compressor not attached to a storage backend");
+        }
+        long total = 0;
+        for (var sample : samples) {
+            total += sample.length;
+        }
+        if (samples.size() < 8 || Integer.MAX_VALUE < total) {
+            System.err.println("Not training zstd dictionary, bad sample set of " + samples.size() + " samples");
+            return;
+        }
+
+        var sampleBuffer = MemoryUtil.memAlloc((int) total);
+        var sampleSizes = PointerBuffer.allocateDirect(samples.size());
+        var dictBuffer = MemoryUtil.memAlloc(this.dictionarySize);
+        try {
+            for (var sample : samples) {
+                sampleBuffer.put(sample);
+                sampleSizes.put(sample.length);
+            }
+            sampleBuffer.rewind();
+            sampleSizes.rewind();
+            long size = ZDICT_trainFromBuffer(dictBuffer, sampleBuffer, sampleSizes);
+            if (ZDICT_isError(size)) {
+                System.err.println("Failed to train zstd dictionary: " + ZDICT_getErrorName(size));
+                return;
+            }
+            var data = new byte[(int) size];
+            dictBuffer.get(0, data);
+
+            synchronized (this) {
+                var current = this.current;
+                int version = current == null ? 1 : current.version + 1;
+                var dict = this.load(version, data);
+                //Persist the dictionary before anything compressed with it can be written
+                dictBuffer.limit((int) size);
+                this.storage.putIdMapping(mappingId(version), dictBuffer);
+                this.current = dict;
+                System.out.println("Trained zstd dictionary version " + version + " (" + size + " bytes) from " + samples.size() + " sections");
+            }
+        } finally {
+            MemoryUtil.memFree(sampleBuffer);
+            sampleSizes.free();
+            MemoryUtil.memFree(dictBuffer);
+        }
+    }
+
+    public int getTrainingSampleCount() {
+        return this.trainingSamples;
+    }
+
+    public int getDictionaryVersion() {
+        var current = this.current;
+        return current == null ? 0 : current.version;
+    }
+
+    @Override
+    public ByteBuffer compress(ByteBuffer saveData) {
+        this.sample(saveData);
+        var dict = this.current;
+        ByteBuffer compressedData = BufferPool.acquire((int)ZSTD_COMPRESSBOUND(saveData.remaining()));
+        long compressedSize;
+        if (dict == null) {
+            compressedSize = ZSTD_compressCCtx(this.contexts.cctx(), compressedData, saveData, this.level);
+        } else {
+            compressedSize = ZSTD_compress_usingCDict(this.contexts.cctx(), compressedData, saveData, dict.cdict);
+        }
+        if (ZSTD_isError(compressedSize)) {
+            BufferPool.release(compressedData);
+            throw new IllegalStateException("Failed to compress section: " + ZSTD_getErrorName(compressedSize));
+        }
+        compressedData.limit((int) compressedSize);
+        compressedData.rewind();
+        return compressedData;
+    }
+
+    @Override
+    public ByteBuffer decompress(ByteBuffer saveData) {
+        int dictId = ZSTD_getDictID_fromFrame(saveData);
+        long ddict = 0;
+        if (dictId != 0) {
+            ddict = this.ddicts.get(dictId);
+            if (ddict == 0) {
+                throw new IllegalStateException("Missing zstd dictionary with id " + dictId);
+            }
+        }
+        var decompressed = BufferPool.acquire(ZSTDThreadContexts.decompressedSize(saveData));
+        long size;
+        if (ddict == 0) {
+            //Written without a dictionary (or by the plain zstd compressor)
+            size = ZSTD_decompressDCtx(this.contexts.dctx(), decompressed, saveData);
+        } else {
+            size = ZSTD_decompress_usingDDict(this.contexts.dctx(), decompressed, saveData, ddict);
+        }
+        if (ZSTD_isError(size)) {
+            BufferPool.release(decompressed);
+            throw new IllegalStateException("Failed to decompress section: " + ZSTD_getErrorName(size));
+        }
+        decompressed.limit((int) size);
+        return decompressed;
+    }
+
+    @Override
+    public int getCodecTag() {
+        return CODEC_TAG;
+    }
+
+    @Override
+    public synchronized void close() {
+        this.contexts.close();
+        for (long cdict : this.cdicts) {
+            ZSTD_freeCDict(cdict);
+        }
+        this.cdicts.clear();
+        for (long ddict : this.ddicts.values()) {
+            ZSTD_freeDDict(ddict);
+        }
+        this.ddicts = new Int2LongOpenHashMap();
+        this.current = null;
+    }
+
+    public static class Config extends CompressorConfig {
+        public int compressionLevel = 7;
+        public int dictionarySize = 64*1024;
+        //Number of sections to train a dictionary from and take every sampleRate'th saved section as a sample
+        public int trainingSamples = 256;
+        public int sampleRate = 4;
+
+        @Override
+        public StorageCompressor build(ConfigBuildCtx ctx) {
+            return new ZSTDDictCompressor(this.compressionLevel, this.dictionarySize, this.trainingSamples, this.sampleRate);
+        }
+
+        public static String getConfigTypeName() {
+            return "ZSTDDict";
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package me.cortex.voxy.common.storage.compressors;
+
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import me.cortex.voxy.common.storage.StorageCompressor;
+
+import java.nio.ByteBuffer;
+
+import static org.lwjgl.util.zstd.Zstd.*;
+
+//Per thread ZSTD_CCtx/ZSTD_DCtx so that the contexts (and their internal tables) get reused between calls instead of
+// being set up again for every section, all created contexts are tracked so they can be freed on close
+final class ZSTDThreadContexts {
+    private final LongArrayList allCCtx = new LongArrayList();
+    private final LongArrayList allDCtx = new LongArrayList();
+    private final ThreadLocal<long[]> contexts = ThreadLocal.withInitial(()->new long[2]);
+    private volatile boolean closed;
+
+    long cctx() {
+        if (this.closed) {
+            throw new IllegalStateException("Compressor already closed");
+        }
+        var ctx = this.contexts.get();
+        if (ctx[0] == 0) {
+            ctx[0] = this.track(this.allCCtx, ZSTD_createCCtx());
+        }
+        return ctx[0];
+    }
+
+    long dctx() {
+        if (this.closed) {
+            throw new IllegalStateException("Compressor already closed");
+        }
+        var ctx = this.contexts.get();
+        if (ctx[1] == 0) {
+            ctx[1] = this.track(this.allDCtx, ZSTD_createDCtx());
+        }
+        return ctx[1];
+    }
+
+    private synchronized long track(LongArrayList list, long ctx) {
+        if (this.closed) {
+            throw new IllegalStateException("Compressor already closed");
+        }
+        if (ctx == 0) {
+            throw new IllegalStateException("Failed to create zstd context");
+        }
+        list.add(ctx);
+        return ctx;
+    }
+
+    //Size of the decompressed frame read from the frame header, falls back to the max section size for frames
+    // without a content size
+    static int decompressedSize(ByteBuffer frame) {
+        long size = ZSTD_getFrameContentSize(frame);
+        if (size == ZSTD_CONTENTSIZE_ERROR) {
+            throw new IllegalStateException("Not a zstd frame");
+        }
+        if (size == ZSTD_CONTENTSIZE_UNKNOWN || StorageCompressor.MAX_SECTION_SIZE < size) {
+            return StorageCompressor.MAX_SECTION_SIZE;
+        }
+        return (int) size;
+    }
+
+    synchronized void close() {
+        this.closed = true;
+        for (long ctx : this.allCCtx) {
+            ZSTD_freeCCtx(ctx);
+        }
+        for (long ctx : this.allDCtx) {
+            ZSTD_freeDCtx(ctx);
+        }
+        this.allCCtx.clear();
+        this.allDCtx.clear();
+    }
+}
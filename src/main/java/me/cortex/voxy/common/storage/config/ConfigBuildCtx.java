@@ -11,6 +11,8 @@ public class ConfigBuildCtx {
     //List of tokens
     public static final String BASE_SAVE_PATH = "{base_save_path}";
     public static final String WORLD_IDENTIFIER = "{world_identifier}";
+    //Dimension registry id, e.g. minecraft:overworld
+    public static final String DIMENSION = "{dimension}";
     public static final String DEFAULT_STORAGE_PATH = BASE_SAVE_PATH+"/"+WORLD_IDENTIFIER+"/storage/";
 
 
@@ -31,6 +33,15 @@ public class ConfigBuildCtx {
         return this;
     }
 
+    /**
+     * Gets a builder property
+     * @param property property name
+     * @return the property value or null if its not set
+     */
+    public String getProperty(String property) {
+        return this.properties.get(property);
+    }
+
     /**
      * Pushes a path to the build context so that when resolvePath is called it is with respect to the added path
      * @param path the path to add to the stack
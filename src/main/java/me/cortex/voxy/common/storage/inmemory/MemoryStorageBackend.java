@@ -4,7 +4,9 @@ import it.unimi.dsi.fastutil.ints.Int2ObjectMap;
 import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap;
 import it.unimi.dsi.fastutil.longs.Long2ObjectMap;
 import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
 import it.unimi.dsi.fastutil.objects.ObjectCollection;
+import me.cortex.voxy.common.storage.SectionVisitor;
 import me.cortex.voxy.common.storage.StorageBackend;
 import me.cortex.voxy.common.storage.config.ConfigBuildCtx;
 import me.cortex.voxy.common.storage.config.StorageConfig;
@@ -72,6 +74,41 @@ public class MemoryStorageBackend extends StorageBackend {
         }
     }
 
+    @Override
+    public boolean iterateSections(long minKey, long maxKey, boolean withData, SectionVisitor visitor) {
+        for (var map : this.maps) {
+            //Snapshot the keys so the visitor can freely read and write while iterating
+            LongArrayList keys = new LongArrayList();
+            synchronized (map) {
+                for (long key : map.keySet()) {
+                    if (inRange(key, minKey, maxKey)) {
+                        keys.add(key);
+                    }
+                }
+            }
+            for (int i = 0; i < keys.size(); i++) {
+                long key = keys.getLong(i);
+                ByteBuffer data = null;
+                if (withData) {
+                    data = this.getSectionData(key);
+                    if (data == null) {
+                        continue;//Deleted since the snapshot
+                    }
+                }
+                try {
+                    if (!visitor.visit(key, data)) {
+                        return false;
+                    }
+                } finally {
+                    if (data != null) {
+                        MemoryUtil.memFree(data);
+                    }
+                }
+            }
+        }
+        return true;
+    }
+
     @Override
     public void putIdMapping(int id, ByteBuffer data) {
         synchronized (this.idMappings) {
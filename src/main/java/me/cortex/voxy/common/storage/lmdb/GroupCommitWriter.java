@@ -0,0 +1,176 @@
+package me.cortex.voxy.common.storage.lmdb;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+//Single writer thread that takes the queued puts and deletes from all the saving threads and commits them together in
+// one write transaction, so the saving threads dont each wait on the lmdb writer lock and a commit of their own
+//Callers block until the transaction containing their write has been committed, so the caller still owns the data
+// buffer the whole time and reads after a write always see it
+class GroupCommitWriter {
+    private static final int MAX_BATCH = 1024;
+
+    static final class Op {
+        final long key;
+        //null for a delete
+        final ByteBuffer data;
+        Throwable error;
+        private boolean done;
+
+        private Op(long key, ByteBuffer data) {
+            this.key = key;
+            this.data = data;
+        }
+    }
+
+    private final ArrayDeque<Op> queue = new ArrayDeque<>();
+    //Executes all the ops in a single transaction, per op failures are put into Op.error, if it throws the whole
+    // batch failed
+    private final Consumer<List<Op>> committer;
+    private final Runnable syncer;
+    private final long syncInterval;
+    private final Thread thread;
+    private volatile boolean running = true;
+
+    GroupCommitWriter(Consumer<List<Op>> committer, Runnable syncer, long syncIntervalMs) {
+        this.committer = committer;
+        this.syncer = syncer;
+        this.syncInterval = syncIntervalMs;
+        this.thread = new Thread(this::run);
+        this.thread.setName("LMDB group commit writer");
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    void put(long key, ByteBuffer data) {
+        this.await(this.enqueue(new Op(key, data)));
+    }
+
+    void delete(long key) {
+        this.await(this.enqueue(new Op(key, null)));
+    }
+
+    void putBatch(long[] keys, ByteBuffer[] data) {
+        var ops = new Op[keys.length];
+        synchronized (this.queue) {
+            this.checkRunning();
+            for (int i = 0; i < keys.length; i++) {
+                ops[i] = new Op(keys[i], data[i]);
+                this.queue.add(ops[i]);
+            }
+            this.queue.notifyAll();
+        }
+        for (var op : ops) {
+            this.await(op);
+        }
+    }
+
+    private void checkRunning() {
+        if (!this.running) {
+            throw new IllegalStateException("Writer is shut down");
+        }
+    }
+
+    private Op enqueue(Op op) {
+        synchronized (this.queue) {
+            this.checkRunning();
+            this.queue.add(op);
+            this.queue.notifyAll();
+        }
+        return op;
+    }
+
+    private void await(Op op) {
+        synchronized (this.queue) {
+            while (!op.done) {
+                try {
+                    this.queue.wait();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        }
+        if (op.error != null) {
+            throw new RuntimeException(op.error);
+        }
+    }
+
+    private void run() {
+        var batch = new ArrayList<Op>(MAX_BATCH);
+        long lastSync = System.currentTimeMillis();
+        boolean unsynced = false;
+        while (true) {
+            synchronized (this.queue) {
+                while (this.queue.isEmpty() && this.running) {
+                    long timeout = 0;
+                    if (unsynced) {
+                        timeout = lastSync + this.syncInterval - System.currentTimeMillis();
+                        if (timeout <= 0) {
+                            break;
+                        }
+                    }
+                    try {
+                        this.queue.wait(timeout);
+                    } catch (InterruptedException e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+                if (this.queue.isEmpty() && !this.running) {
+                    break;
+                }
+                while (!this.queue.isEmpty() && batch.size() < MAX_BATCH) {
+                    batch.add(this.queue.poll());
+                }
+            }
+
+            if (!batch.isEmpty()) {
+                Throwable batchError = null;
+                try {
+                    this.committer.accept(batch);
+                    unsynced = this.syncer != null;
+                } catch (Throwable e) {
+                    System.err.println("LMDB group commit failed");
+                    e.printStackTrace();
+                    batchError = e;
+                }
+                synchronized (this.queue) {
+                    for (var op : batch) {
+                        if (batchError != null) {
+                            op.error = batchError;
+                        }
+                        op.done = true;
+                    }
+                    this.queue.notifyAll();
+                }
+                batch.clear();
+            }
+
+            if (unsynced && System.currentTimeMillis() - lastSync >= this.syncInterval) {
+                try {
+                    this.syncer.run();
+                } catch (Throwable e) {
+                    System.err.println("LMDB env sync failed");
+                    e.printStackTrace();
+                }
+                unsynced = false;
+                lastSync = System.currentTimeMillis();
+            }
+        }
+    }
+
+    //Finishes all queued writes then stops the thread
+    void shutdown() {
+        synchronized (this.queue) {
+            this.running = false;
+            this.queue.notifyAll();
+        }
+        try {
+            this.thread.join();
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
@@ -1,5 +1,6 @@
 package me.cortex.voxy.common.storage.lmdb;
 
+import it.unimi.dsi.fastutil.longs.LongArrayList;
 import org.lwjgl.PointerBuffer;
 import org.lwjgl.system.MemoryStack;
 import org.lwjgl.util.lmdb.MDBEnvInfo;
@@ -11,6 +12,13 @@ import static org.lwjgl.util.lmdb.LMDB.*;
 
 public class LMDBInterface {
     private final long env;
+    //Pool of reset read only transactions that get renewed instead of being recreated for every read, a reset
+    // transaction keeps its reader slot so the pool is bounded, anything past that is aborted when its returned so
+    // threads that come and go (import workers etc) dont leak reader slots
+    private static final int MAX_POOLED_READ_TXNS = 32;
+    private final LongArrayList readTxnPool = new LongArrayList();
+    private boolean closed;
+
     private LMDBInterface(long env) {
         this.env = env;
     }
@@ -31,6 +39,17 @@ public class LMDBInterface {
             return this;
         }
 
+        //Can be set before opening to reserve the map up front
+        public Builder setMapSize(long size) {
+            E(mdb_env_set_mapsize(this.env, size));
+            return this;
+        }
+
+        public Builder setMaxReaders(int readers) {
+            E(mdb_env_set_maxreaders(this.env, readers));
+            return this;
+        }
+
         public Builder open(String directory, int flags) {
             E(mdb_env_open(this.env, directory, flags, 0664));
             return this;
@@ -42,6 +61,13 @@ public class LMDBInterface {
     }
 
     public void close() {
+        synchronized (this.readTxnPool) {
+            for (long txn : this.readTxnPool) {
+                mdb_txn_abort(txn);
+            }
+            this.readTxnPool.clear();
+            this.closed = true;
+        }
         mdb_env_close(env);
     }
 
@@ -82,6 +108,46 @@ public class LMDBInterface {
         return ret;
     }
 
+    //Runs the callback in a pooled read only transaction, the env must be opened with MDB_NOTLS since a transaction
+    // can be reused by a different thread
+    public <T> T readTransaction(TransactionCallback<T> transaction) {
+        long txn = 0;
+        synchronized (this.readTxnPool) {
+            if (!this.readTxnPool.isEmpty()) {
+                txn = this.readTxnPool.popLong();
+            }
+        }
+        try (var stack = stackPush()) {
+            if (txn == 0) {
+                PointerBuffer pp = stack.mallocPointer(1);
+                E(mdb_txn_begin(this.env, 0, MDB_RDONLY, pp));
+                txn = pp.get(0);
+            } else {
+                int rc = mdb_txn_renew(txn);
+                if (rc != MDB_SUCCESS) {
+                    mdb_txn_abort(txn);
+                    E(rc);
+                }
+            }
+            try {
+                return transaction.exec(stack, txn);
+            } finally {
+                mdb_txn_reset(txn);
+                this.returnReadTxn(txn);
+            }
+        }
+    }
+
+    private void returnReadTxn(long txn) {
+        synchronized (this.readTxnPool) {
+            if (!this.closed && this.readTxnPool.size() < MAX_POOLED_READ_TXNS) {
+                this.readTxnPool.add(txn);
+                return;
+            }
+        }
+        mdb_txn_abort(txn);
+    }
+
     public Database createDb(String name) {
         return this.createDb(name, MDB_CREATE|MDB_INTEGERKEY);
     }
@@ -128,6 +194,12 @@ public class LMDBInterface {
             });
         }
 
+        public <T> T readTransaction(TransactionWrappedCallback<T> callback) {
+            return LMDBInterface.this.readTransaction((stack, transaction) -> {
+                return callback.exec(new TransactionWrapper(transaction, stack).set(this));
+            });
+        }
+
         public int getDBI() {
             return this.dbi;
         }
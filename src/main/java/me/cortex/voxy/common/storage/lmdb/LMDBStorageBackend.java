@@ -1,6 +1,7 @@
 package me.cortex.voxy.common.storage.lmdb;
 
 import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap;
+import me.cortex.voxy.common.storage.SectionVisitor;
 import me.cortex.voxy.common.storage.StorageBackend;
 import me.cortex.voxy.common.storage.config.ConfigBuildCtx;
 import me.cortex.voxy.common.storage.config.StorageConfig;
@@ -8,6 +9,7 @@ import org.lwjgl.system.MemoryUtil;
 import org.lwjgl.util.lmdb.MDBVal;
 
 import java.nio.ByteBuffer;
+import java.util.List;
 import java.util.Objects;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.ReentrantLock;
@@ -18,6 +20,7 @@ import static org.lwjgl.util.lmdb.LMDB.MDB_NOTFOUND;
 
 public class LMDBStorageBackend extends StorageBackend {
     private static final long GROW_SIZE = 1<<25;//Grow by 33 mb each time
+    private static final int ITERATION_CHUNK = 256;
 
     private final AtomicInteger accessingCounts = new AtomicInteger();
     private final ReentrantLock resizeLock = new ReentrantLock();
@@ -25,14 +28,69 @@ public class LMDBStorageBackend extends StorageBackend {
     private final LMDBInterface dbi;
     private final LMDBInterface.Database sectionDatabase;
     private final LMDBInterface.Database idMappingDatabase;
+    private final GroupCommitWriter writer;
+    private final boolean noSync;
+
     public LMDBStorageBackend(String file) {
+        this(file, new Config());
+    }
+
+    public LMDBStorageBackend(String file, Config config) {
+        //MDB_NOTLS so the pooled read transactions can be used from any thread
+        int flags = MDB_NOSUBDIR|MDB_NOTLS;
+        if (config.writeMap) {
+            //NOTE: on windows the file gets allocated to the full map size with this
+            flags |= MDB_WRITEMAP;
+        }
+        if (config.noSync) {
+            //Commits dont fsync, instead the env gets synced periodically by the writer and on flush/close
+            flags |= MDB_NOSYNC;
+        }
+        this.noSync = config.noSync;
+        //With a reserved map the map is allocated sparsely up front, so it basically never has to be grown (which
+        // needs every transaction to drain first)
+        long mapSize = Math.max(config.reservedMapSizeGb * (1L<<30), GROW_SIZE);
         this.dbi = new LMDBInterface.Builder()
                 .setMaxDbs(2)
-                .open(file, MDB_NOSUBDIR)//MDB_NOLOCK (IF I DO THIS, must sync the db manually)// TODO: THIS
+                .setMaxReaders(512)
+                .setMapSize(mapSize)
+                .open(file, flags)
                 .fetch();
-        this.dbi.setMapSize(GROW_SIZE);
+        if (this.dbi.getMapSize() < mapSize) {
+            this.dbi.setMapSize(mapSize);
+        }
         this.sectionDatabase = this.dbi.createDb("world_sections");
         this.idMappingDatabase = this.dbi.createDb("id_mapping");
+        if (config.groupCommit) {
+            this.writer = new GroupCommitWriter(this::commitBatch, config.noSync?()->this.dbi.flush(true):null, config.syncIntervalMs);
+        } else {
+            this.writer = null;
+        }
+    }
+
+    private void commitBatch(List<GroupCommitWriter.Op> ops) {
+        this.resizingTransaction(() -> this.sectionDatabase.transaction(transaction->{
+            var keyBuff = transaction.stack.malloc(8);
+            for (var op : ops) {
+                op.error = null;
+                keyBuff.putLong(0, op.key);
+                if (op.data != null) {
+                    transaction.put(keyBuff, op.data, 0);
+                } else {
+                    //A delete of a missing key (MDB_NOTFOUND) doesnt break the transaction, so only fail that op, any
+                    // other error does (and MAP_FULL has to reach resizingTransaction) so it fails the whole batch
+                    try {
+                        transaction.del(keyBuff);
+                    } catch (IllegalStateException e) {
+                        if (e.getMessage() == null || !e.getMessage().startsWith("Code: " + MDB_NOTFOUND)) {
+                            throw e;
+                        }
+                        op.error = e;
+                    }
+                }
+            }
+            return null;
+        }));
     }
 
     private void growEnv() {
@@ -82,9 +140,8 @@ public class LMDBStorageBackend extends StorageBackend {
         }
     }
 
-    //TODO: make batch get and updates
     public ByteBuffer getSectionData(long key) {
-        return this.synchronizedTransaction(() -> this.sectionDatabase.transaction(MDB_RDONLY, transaction->{
+        return this.synchronizedTransaction(() -> this.sectionDatabase.readTransaction(transaction->{
             var buff = transaction.stack.malloc(8);
             buff.putLong(0, key);
             var bb = transaction.get(buff);
@@ -100,6 +157,10 @@ public class LMDBStorageBackend extends StorageBackend {
     //TODO: pad data to like some alignemnt so that when the section gets saved or updated
     // it can use the same allocation
     public void setSectionData(long key, ByteBuffer data) {
+        if (this.writer != null) {
+            this.writer.put(key, data);
+            return;
+        }
         this.resizingTransaction(() -> this.sectionDatabase.transaction(transaction->{
             var keyBuff = transaction.stack.malloc(8);
             keyBuff.putLong(0, key);
@@ -108,7 +169,50 @@ public class LMDBStorageBackend extends StorageBackend {
         }));
     }
 
+    @Override
+    public ByteBuffer[] getSectionDataBatch(long[] keys) {
+        return this.synchronizedTransaction(() -> this.sectionDatabase.readTransaction(transaction->{
+            var out = new ByteBuffer[keys.length];
+            var buff = transaction.stack.malloc(8);
+            for (int i = 0; i < keys.length; i++) {
+                buff.putLong(0, keys[i]);
+                var bb = transaction.get(buff);
+                if (bb == null) {
+                    continue;
+                }
+                var copy = MemoryUtil.memAlloc(bb.remaining());
+                MemoryUtil.memCopy(bb, copy);
+                out[i] = copy;
+            }
+            return out;
+        }));
+    }
+
+    @Override
+    public void setSectionDataBatch(long[] keys, ByteBuffer[] data) {
+        if (keys.length != data.length) {
+            throw new IllegalArgumentException("Key count does not match data count");
+        }
+        if (this.writer != null) {
+            this.writer.putBatch(keys, data);
+            return;
+        }
+        //All the puts are done in the same write transaction, if the map fills up the entire transaction is retried
+        this.resizingTransaction(() -> this.sectionDatabase.transaction(transaction->{
+            var keyBuff = transaction.stack.malloc(8);
+            for (int i = 0; i < keys.length; i++) {
+                keyBuff.putLong(0, keys[i]);
+                transaction.put(keyBuff, data[i], 0);
+            }
+            return null;
+        }));
+    }
+
     public void deleteSectionData(long key) {
+        if (this.writer != null) {
+            this.writer.delete(key);
+            return;
+        }
         this.synchronizedTransaction(() -> this.sectionDatabase.transaction(transaction->{
             var keyBuff = transaction.stack.malloc(8);
             keyBuff.putLong(0, key);
@@ -126,6 +230,76 @@ public class LMDBStorageBackend extends StorageBackend {
         }));
     }
 
+    @Override
+    public boolean iterateSections(long minKey, long maxKey, boolean withData, SectionVisitor visitor) {
+        //Done in chunks with a fresh read transaction each so that the visitor isnt run while holding a transaction
+        // (which would block the env from being grown)
+        long[] keys = new long[ITERATION_CHUNK];
+        ByteBuffer[] datas = new ByteBuffer[ITERATION_CHUNK];
+        long next = minKey;
+        boolean more = true;
+        while (more) {
+            long start = next;
+            int[] countOut = new int[1];
+            more = this.synchronizedTransaction(() -> this.sectionDatabase.readTransaction(transaction->{
+                try (var cursor = transaction.createCursor()) {
+                    var keyBuff = transaction.stack.malloc(8);
+                    keyBuff.putLong(0, start);
+                    var keyPtr = MDBVal.malloc(transaction.stack).mv_data(keyBuff);
+                    var valPtr = MDBVal.malloc(transaction.stack);
+                    int count = 0;
+                    int op = MDB_SET_RANGE;
+                    while (cursor.get(op, keyPtr, valPtr) != MDB_NOTFOUND) {
+                        op = MDB_NEXT;
+                        long key = keyPtr.mv_data().getLong(0);
+                        if (Long.compareUnsigned(maxKey, key) < 0) {
+                            countOut[0] = count;
+                            return false;
+                        }
+                        keys[count] = key;
+                        if (withData) {
+                            var val = Objects.requireNonNull(valPtr.mv_data());
+                            var copy = MemoryUtil.memAlloc(val.remaining());
+                            MemoryUtil.memCopy(val, copy);
+                            datas[count] = copy;
+                        }
+                        if (++count == ITERATION_CHUNK) {
+                            countOut[0] = count;
+                            return key != -1L;
+                        }
+                    }
+                    countOut[0] = count;
+                    return false;
+                }
+            }));
+            int count = countOut[0];
+            if (count != 0) {
+                next = keys[count-1] + 1;
+            }
+            for (int i = 0; i < count; i++) {
+                boolean cont;
+                try {
+                    cont = visitor.visit(keys[i], datas[i]);
+                } finally {
+                    if (datas[i] != null) {
+                        MemoryUtil.memFree(datas[i]);
+                        datas[i] = null;
+                    }
+                }
+                if (!cont) {
+                    for (int j = i + 1; j < count; j++) {
+                        if (datas[j] != null) {
+                            MemoryUtil.memFree(datas[j]);
+                            datas[j] = null;
+                        }
+                    }
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
     public Int2ObjectOpenHashMap<byte[]> getIdMappingsData() {
         return this.synchronizedTransaction(() -> {
             Int2ObjectOpenHashMap<byte[]> mapping = new Int2ObjectOpenHashMap<>();
@@ -153,15 +327,30 @@ public class LMDBStorageBackend extends StorageBackend {
     }
 
     public void close() {
+        if (this.writer != null) {
+            this.writer.shutdown();
+        }
+        if (this.noSync) {
+            this.dbi.flush(true);
+        }
         this.sectionDatabase.close();
         this.idMappingDatabase.close();
         this.dbi.close();
     }
 
     public static class Config extends StorageConfig {
+        //Reserves the map up front instead of growing it as it fills, 0 to grow as needed
+        public int reservedMapSizeGb = 0;
+        public boolean writeMap = false;
+        //Dont fsync on commit, the env is synced every syncIntervalMs instead, a crash can lose the writes since
+        public boolean noSync = false;
+        public int syncIntervalMs = 5000;
+        //Send all writes through a single writer thread that commits them in groups
+        public boolean groupCommit = false;
+
         @Override
         public StorageBackend build(ConfigBuildCtx ctx) {
-            return new LMDBStorageBackend(ctx.ensurePathExists(ctx.substituteString(ctx.resolvePath())));
+            return new LMDBStorageBackend(ctx.ensurePathExists(ctx.substituteString(ctx.resolvePath())), this);
         }
 
         public static String getConfigTypeName() {
@@ -0,0 +1,694 @@
+package me.cortex.voxy.common.storage.logstructured;
+
+import it.unimi.dsi.fastutil.Arrays;
+import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.longs.Long2LongOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import me.cortex.voxy.common.storage.SectionVisitor;
+import me.cortex.voxy.common.storage.StorageBackend;
+import me.cortex.voxy.common.storage.config.ConfigBuildCtx;
+import me.cortex.voxy.common.storage.config.StorageConfig;
+import org.lwjgl.system.MemoryUtil;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+//Storage backend that appends section blobs to memory mapped segment files, an in memory index maps each section key
+// to the location of its latest record, the index is saved to a file on flush and rebuilt from it on startup (with
+// anything appended after the last save being recovered by scanning the segment tails)
+//A background compactor copies the live records out of mostly garbage segments and then deletes them
+public class LogStructuredStorageBackend extends StorageBackend {
+    private static final int INDEX_MAGIC = 0x4C4F4749;//LOGI
+    private static final int INDEX_VERSION = 1;
+    private static final String INDEX_FILE = "index.bin";
+    private static final String ID_MAPPING_FILE = "id_mappings.bin";
+    private static final int COMPACTION_BATCH = 256;
+
+    private final Path directory;
+    private final long segmentSize;
+    private final float compactionLiveRatio;
+    private final long backgroundInterval;
+
+    //Guards everything below, reads only need the read lock since they just memcpy out of the mappings
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final Int2ObjectOpenHashMap<Segment> segments = new Int2ObjectOpenHashMap<>();
+    //key -> segment id<<40 | offset
+    private final Long2LongOpenHashMap index = new Long2LongOpenHashMap();
+    private Segment active;
+    private int nextSegmentId;
+    //Bumped every time the store is opened, used to stop recovery scans from running into stale records from before a crash
+    private int epoch;
+    private boolean indexDirty;
+
+    //Only one index save at a time
+    private final Object indexSaveLock = new Object();
+
+    private final Int2ObjectOpenHashMap<byte[]> idMappings = new Int2ObjectOpenHashMap<>();
+    private final DataOutputStream idMappingOutput;
+    private final FileOutputStream idMappingFile;
+
+    private volatile boolean running = true;
+    private final Object backgroundLock = new Object();
+    private final Thread backgroundThread;
+
+    public LogStructuredStorageBackend(String directory, long segmentSize, float compactionLiveRatio, long backgroundInterval) {
+        this.directory = Path.of(directory);
+        this.segmentSize = Math.min(segmentSize, 1L<<30);
+        this.compactionLiveRatio = compactionLiveRatio;
+        this.backgroundInterval = backgroundInterval;
+        this.index.defaultReturnValue(-1);
+        try {
+            this.open();
+            var mappingPath = this.directory.resolve(ID_MAPPING_FILE);
+            this.loadIdMappings(mappingPath);
+            this.idMappingFile = new FileOutputStream(mappingPath.toFile(), true);
+            this.idMappingOutput = new DataOutputStream(new BufferedOutputStream(this.idMappingFile));
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+
+        this.backgroundThread = new Thread(this::backgroundWorker);
+        this.backgroundThread.setName("Log storage compactor");
+        this.backgroundThread.setDaemon(true);
+        this.backgroundThread.start();
+    }
+
+    private static long location(int segment, long offset) {
+        return (((long)segment)<<40)|offset;
+    }
+
+    private static int locationSegment(long location) {
+        return (int) (location>>>40);
+    }
+
+    private static long locationOffset(long location) {
+        return location&((1L<<40)-1);
+    }
+
+    private Path segmentPath(int id) {
+        return this.directory.resolve(String.format("segment_%08d.log", id));
+    }
+
+    private static int segmentIdOf(Path path) {
+        var name = path.getFileName().toString();
+        if (!(name.startsWith("segment_") && name.endsWith(".log"))) {
+            return -1;
+        }
+        try {
+            return Integer.parseInt(name.substring(8, name.length()-4));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    //======== Startup and recovery ========
+
+    private void open() throws IOException {
+        List<Integer> ids = new ArrayList<>();
+        try (var files = Files.list(this.directory)) {
+            files.mapToInt(LogStructuredStorageBackend::segmentIdOf).filter(id->id>=0).forEach(ids::add);
+        }
+        ids.sort(Comparator.naturalOrder());
+
+        boolean loaded = false;
+        try {
+            loaded = this.loadIndex(ids);
+        } catch (Exception e) {
+            System.err.println("Failed to load log storage index, rebuilding from segments");
+            e.printStackTrace();
+        }
+        if (!loaded) {
+            this.rebuild(ids);
+        }
+
+        //Records written from now on have a higher epoch than anything left behind by a crash, so its safe to keep
+        // appending to the last segment
+        this.epoch++;
+        var last = this.segments.get(this.nextSegmentId - 1);
+        if (last != null && last.tail < last.capacity - (last.capacity>>3)) {
+            this.active = last;
+        } else {
+            this.active = this.createSegment();
+        }
+        this.indexDirty = true;
+    }
+
+    private void rebuild(List<Integer> ids) throws IOException {
+        for (var segment : this.segments.values()) {
+            segment.close();
+        }
+        this.segments.clear();
+        this.index.clear();
+        this.epoch = 0;
+        this.nextSegmentId = 0;
+        for (int id : ids) {
+            var segment = new Segment(id, this.segmentPath(id), 0);
+            this.segments.put(id, segment);
+            this.scan(segment, 0);
+            this.nextSegmentId = id + 1;
+        }
+        if (!ids.isEmpty()) {
+            System.out.println("Rebuilt log storage index from " + ids.size() + " segments, " + this.index.size() + " sections");
+        }
+    }
+
+    private boolean loadIndex(List<Integer> ids) throws IOException {
+        var path = this.directory.resolve(INDEX_FILE);
+        if (!Files.exists(path)) {
+            return false;
+        }
+        var crc = new CRC32();
+        //Checksum stream sits above the buffering so it only sees the bytes that were actually consumed
+        try (var in = new DataInputStream(new CheckedInputStream(new BufferedInputStream(Files.newInputStream(path), 1<<16), crc))) {
+            if (in.readInt() != INDEX_MAGIC || in.readInt() != INDEX_VERSION) {
+                return false;
+            }
+            this.nextSegmentId = in.readInt();
+            this.epoch = in.readInt();
+            int segmentCount = in.readInt();
+            for (int i = 0; i < segmentCount; i++) {
+                int id = in.readInt();
+                long tail = in.readLong();
+                long live = in.readLong();
+                if (!ids.contains(id)) {
+                    System.err.println("Log storage segment " + id + " is missing");
+                    return false;
+                }
+                var segment = new Segment(id, this.segmentPath(id), 0);
+                segment.tail = tail;
+                segment.liveBytes = live;
+                this.segments.put(id, segment);
+            }
+            long entries = in.readLong();
+            this.index.ensureCapacity((int) entries);
+            for (long i = 0; i < entries; i++) {
+                this.index.put(in.readLong(), in.readLong());
+            }
+            long expected = crc.getValue();
+            if (in.readLong() != expected) {
+                System.err.println("Log storage index checksum mismatch");
+                return false;
+            }
+        }
+
+        for (int id : ids) {
+            var segment = this.segments.get(id);
+            if (segment != null) {
+                //Recover anything that was appended after the index was saved
+                this.scan(segment, segment.tail);
+            } else if (id < this.nextSegmentId) {
+                //A segment that was compacted but not deleted before shutdown
+                Files.deleteIfExists(this.segmentPath(id));
+            } else {
+                segment = new Segment(id, this.segmentPath(id), 0);
+                this.segments.put(id, segment);
+                this.scan(segment, 0);
+                this.nextSegmentId = id + 1;
+            }
+        }
+        return true;
+    }
+
+    //Replays the records of a segment starting at the offset into the index and sets the segment tail to the end of the
+    // last valid record
+    private void scan(Segment segment, long offset) {
+        int lastEpoch = Integer.MIN_VALUE;
+        while (segment.isValidRecord(offset)) {
+            int recordEpoch = segment.getEpoch(offset);
+            if (recordEpoch < lastEpoch) {
+                //Stale record left over from before an earlier crash
+                break;
+            }
+            lastEpoch = recordEpoch;
+            this.epoch = Math.max(this.epoch, recordEpoch);
+            int size = segment.getSize(offset);
+            long key = segment.getKey(offset);
+            long recordSize = Segment.recordSize(size);
+            long old;
+            if (size == Segment.TOMBSTONE) {
+                old = this.index.remove(key);
+            } else {
+                old = this.index.put(key, location(segment.id, offset));
+            }
+            //Tombstones count as live too, see compact
+            segment.liveBytes += recordSize;
+            this.releaseRecord(old);
+            offset += recordSize;
+        }
+        segment.tail = offset;
+    }
+
+    private void loadIdMappings(Path path) throws IOException {
+        if (!Files.exists(path)) {
+            return;
+        }
+        try (var in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+            while (true) {
+                int id = in.readInt();
+                int length = in.readInt();
+                var data = new byte[length];
+                in.readFully(data);
+                this.idMappings.put(id, data);
+            }
+        } catch (EOFException e) {
+            //End of file (or a partially written entry from a crash)
+        }
+    }
+
+    //======== Index helpers, must hold the write lock ========
+
+    private Segment createSegment() throws IOException {
+        int id = this.nextSegmentId++;
+        var segment = new Segment(id, this.segmentPath(id), this.segmentSize);
+        this.segments.put(id, segment);
+        return segment;
+    }
+
+    //Marks the record at the location as garbage
+    private void releaseRecord(long location) {
+        if (location == -1) {
+            return;
+        }
+        var segment = this.segments.get(locationSegment(location));
+        segment.liveBytes -= Segment.recordSize(segment.getSize(locationOffset(location)));
+    }
+
+    private long append(long key, int size, long payload) {
+        long recordSize = Segment.recordSize(size);
+        if (!this.active.hasRoom(recordSize)) {
+            try {
+                this.active = this.createSegment();
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+            if (!this.active.hasRoom(recordSize)) {
+                throw new IllegalStateException("Section of size " + size + " does not fit in a segment");
+            }
+        }
+        this.indexDirty = true;
+        return location(this.active.id, this.active.append(key, size, this.epoch, payload));
+    }
+
+    private void put(long key, ByteBuffer data) {
+        int size = data.remaining();
+        long location = this.append(key, size, MemoryUtil.memAddress(data));
+        this.active.liveBytes += Segment.recordSize(size);
+        this.releaseRecord(this.index.put(key, location));
+    }
+
+    //Must hold the read lock
+    private ByteBuffer read(long key) {
+        long location = this.index.get(key);
+        if (location == -1) {
+            return null;
+        }
+        var segment = this.segments.get(locationSegment(location));
+        long offset = locationOffset(location);
+        int size = segment.getSize(offset);
+        var buffer = MemoryUtil.memAlloc(size);
+        MemoryUtil.memCopy(segment.getPayloadAddress(offset), MemoryUtil.memAddress(buffer), size);
+        return buffer;
+    }
+
+    //======== StorageBackend ========
+
+    @Override
+    public ByteBuffer getSectionData(long key) {
+        this.lock.readLock().lock();
+        try {
+            return this.read(key);
+        } finally {
+            this.lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public ByteBuffer[] getSectionDataBatch(long[] keys) {
+        var out = new ByteBuffer[keys.length];
+        this.lock.readLock().lock();
+        try {
+            for (int i = 0; i < keys.length; i++) {
+                out[i] = this.read(keys[i]);
+            }
+        } finally {
+            this.lock.readLock().unlock();
+        }
+        return out;
+    }
+
+    @Override
+    public void setSectionData(long key, ByteBuffer data) {
+        this.lock.writeLock().lock();
+        try {
+            this.put(key, data);
+        } finally {
+            this.lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void setSectionDataBatch(long[] keys, ByteBuffer[] data) {
+        if (keys.length != data.length) {
+            throw new IllegalArgumentException("Key count does not match data count");
+        }
+        this.lock.writeLock().lock();
+        try {
+            for (int i = 0; i < keys.length; i++) {
+                this.put(keys[i], data[i]);
+            }
+        } finally {
+            this.lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void deleteSectionData(long key) {
+        this.lock.writeLock().lock();
+        try {
+            long old = this.index.remove(key);
+            if (old != -1) {
+                //The tombstone has to outlive every older segment that may still hold a put for the key, else a full
+                // rebuild from the segments would bring the section back, so it counts as live until compacted away
+                this.append(key, Segment.TOMBSTONE, 0);
+                this.active.liveBytes += Segment.recordSize(Segment.TOMBSTONE);
+                this.releaseRecord(old);
+            }
+        } finally {
+            this.lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public boolean iterateSections(long minKey, long maxKey, boolean withData, SectionVisitor visitor) {
+        //Snapshot the matching keys sorted by their location so the reads walk through the segments sequentially,
+        // then read them in chunks without holding the lock while visiting
+        LongArrayList keys = new LongArrayList();
+        LongArrayList locations = new LongArrayList();
+        this.lock.readLock().lock();
+        try {
+            for (var entry : this.index.long2LongEntrySet()) {
+                if (inRange(entry.getLongKey(), minKey, maxKey)) {
+                    keys.add(entry.getLongKey());
+                    locations.add(entry.getLongValue());
+                }
+            }
+        } finally {
+            this.lock.readLock().unlock();
+        }
+        long[] keyArray = keys.elements();
+        long[] locationArray = locations.elements();
+        Arrays.quickSort(0, keys.size(), (a, b) -> Long.compare(locationArray[a], locationArray[b]), (a, b) -> {
+            long t = keyArray[a]; keyArray[a] = keyArray[b]; keyArray[b] = t;
+            t = locationArray[a]; locationArray[a] = locationArray[b]; locationArray[b] = t;
+        });
+
+        for (int i = 0; i < keys.size(); i++) {
+            long key = keyArray[i];
+            ByteBuffer data = null;
+            if (withData) {
+                data = this.getSectionData(key);
+                if (data == null) {
+                    continue;//Deleted since the snapshot
+                }
+            }
+            try {
+                if (!visitor.visit(key, data)) {
+                    return false;
+                }
+            } finally {
+                if (data != null) {
+                    MemoryUtil.memFree(data);
+                }
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public void putIdMapping(int id, ByteBuffer data) {
+        var bytes = new byte[data.remaining()];
+        data.get(data.position(), bytes);
+        synchronized (this.idMappings) {
+            try {
+                this.idMappingOutput.writeInt(id);
+                this.idMappingOutput.writeInt(bytes.length);
+                this.idMappingOutput.write(bytes);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+            this.idMappings.put(id, bytes);
+        }
+    }
+
+    @Override
+    public Int2ObjectOpenHashMap<byte[]> getIdMappingsData() {
+        synchronized (this.idMappings) {
+            return new Int2ObjectOpenHashMap<>(this.idMappings);
+        }
+    }
+
+    //======== Persistence and compaction ========
+
+    //Syncs all dirty segments and then saves the index, so the saved index never points at data that isnt on disk
+    private void saveIndex() throws IOException {
+        synchronized (this.indexSaveLock) {
+            Long2LongOpenHashMap indexCopy;
+            List<Segment> segmentsCopy;
+            List<long[]> segmentState = new ArrayList<>();
+            List<Segment> dirty = new ArrayList<>();
+            int nextSegmentId;
+            int epoch;
+            this.lock.writeLock().lock();
+            try {
+                if (!this.indexDirty) {
+                    return;
+                }
+                this.indexDirty = false;
+                indexCopy = this.index.clone();
+                segmentsCopy = new ArrayList<>(this.segments.values());
+                for (var segment : segmentsCopy) {
+                    segmentState.add(new long[]{segment.tail, segment.liveBytes});
+                    if (segment.dirty) {
+                        segment.dirty = false;
+                        dirty.add(segment);
+                    }
+                }
+                nextSegmentId = this.nextSegmentId;
+                epoch = this.epoch;
+            } finally {
+                this.lock.writeLock().unlock();
+            }
+
+            for (var segment : dirty) {
+                segment.force();
+            }
+
+            var path = this.directory.resolve(INDEX_FILE);
+            var tmp = this.directory.resolve(INDEX_FILE + ".tmp");
+            var crc = new CRC32();
+            try (var fileOut = new FileOutputStream(tmp.toFile())) {
+                var out = new DataOutputStream(new CheckedOutputStream(new BufferedOutputStream(fileOut, 1<<16), crc));
+                out.writeInt(INDEX_MAGIC);
+                out.writeInt(INDEX_VERSION);
+                out.writeInt(nextSegmentId);
+                out.writeInt(epoch);
+                out.writeInt(segmentsCopy.size());
+                for (int i = 0; i < segmentsCopy.size(); i++) {
+                    out.writeInt(segmentsCopy.get(i).id);
+                    out.writeLong(segmentState.get(i)[0]);
+                    out.writeLong(segmentState.get(i)[1]);
+                }
+                out.writeLong(indexCopy.size());
+                for (var entry : indexCopy.long2LongEntrySet()) {
+                    out.writeLong(entry.getLongKey());
+                    out.writeLong(entry.getLongValue());
+                }
+                out.writeLong(crc.getValue());
+                out.flush();
+                fileOut.getFD().sync();
+            }
+            Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+    }
+
+    private Segment findCompactionCandidate() {
+        this.lock.readLock().lock();
+        try {
+            Segment best = null;
+            double bestRatio = this.compactionLiveRatio;
+            for (var segment : this.segments.values()) {
+                if (segment == this.active) {
+                    continue;
+                }
+                double ratio = segment.tail == 0 ? 0 : segment.liveBytes/(double)segment.tail;
+                if (ratio < bestRatio) {
+                    bestRatio = ratio;
+                    best = segment;
+                }
+            }
+            return best;
+        } finally {
+            this.lock.readLock().unlock();
+        }
+    }
+
+    //Must hold the lock
+    private boolean hasOlderSegment(int id) {
+        for (int other : this.segments.keySet()) {
+            if (other < id) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    //Copies all records of the segment that are still live to the active segment and then deletes the segment
+    //A tombstone is copied forward while any older segment exists, since that segment may still hold a put for the key
+    // that a rebuild would replay, it can only be dropped once the key has been written again (the newer record
+    // then wins the replay) or every older segment is gone
+    //Tombstones are never released when the key is written again so the live bytes of a segment are an upper bound
+    private void compact(Segment segment) throws IOException {
+        long offset = 0;
+        long moved = 0;
+        while (offset < segment.tail && this.running) {
+            this.lock.writeLock().lock();
+            try {
+                boolean keepTombstones = this.hasOlderSegment(segment.id);
+                for (int i = 0; i < COMPACTION_BATCH && offset < segment.tail; i++) {
+                    int size = segment.getSize(offset);
+                    long key = segment.getKey(offset);
+                    if (size == Segment.TOMBSTONE) {
+                        if (keepTombstones && !this.index.containsKey(key)) {
+                            this.append(key, Segment.TOMBSTONE, 0);
+                            this.active.liveBytes += Segment.recordSize(Segment.TOMBSTONE);
+                        }
+                    } else {
+                        if (this.index.get(key) == location(segment.id, offset)) {
+                            long location = this.append(key, size, segment.getPayloadAddress(offset));
+                            this.active.liveBytes += Segment.recordSize(size);
+                            this.releaseRecord(this.index.put(key, location));
+                            moved += size;
+                        }
+                    }
+                    offset += Segment.recordSize(size);
+                }
+            } finally {
+                this.lock.writeLock().unlock();
+            }
+        }
+        if (!this.running) {
+            return;
+        }
+
+        this.lock.writeLock().lock();
+        try {
+            this.segments.remove(segment.id);
+            this.indexDirty = true;
+        } finally {
+            this.lock.writeLock().unlock();
+        }
+        //Make sure the saved index no longer references the segment before deleting it
+        this.saveIndex();
+        segment.close();
+        try {
+            Files.deleteIfExists(segment.path);
+        } catch (IOException e) {
+            //Can happen if the file is still mapped (windows), its deleted on the next startup instead
+            System.err.println("Failed to delete compacted segment " + segment.path + ": " + e);
+        }
+        System.out.println("Compacted log storage segment " + segment.id + ", moved " + moved + " bytes");
+    }
+
+    private void backgroundWorker() {
+        while (this.running) {
+            //Not interrupted on close since that would close any file channel the thread is using
+            synchronized (this.backgroundLock) {
+                try {
+                    this.backgroundLock.wait(this.backgroundInterval);
+                } catch (InterruptedException e) {
+                    break;
+                }
+            }
+            if (!this.running) break;
+            try {
+                var candidate = this.findCompactionCandidate();
+                if (candidate != null) {
+                    this.compact(candidate);
+                }
+                //Periodically save the index so that the recovery scan on startup stays short
+                this.saveIndex();
+            } catch (Exception e) {
+                System.err.println("Log storage background task failed");
+                e.printStackTrace();
+            }
+        }
+    }
+
+    @Override
+    public void flush() {
+        try {
+            synchronized (this.idMappings) {
+                this.idMappingOutput.flush();
+                this.idMappingFile.getFD().sync();
+            }
+            this.saveIndex();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public void close() {
+        this.running = false;
+        synchronized (this.backgroundLock) {
+            this.backgroundLock.notifyAll();
+        }
+        try {
+            this.backgroundThread.join();
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+        this.flush();
+        try {
+            this.idMappingOutput.close();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        this.lock.writeLock().lock();
+        try {
+            for (var segment : this.segments.values()) {
+                segment.close();
+            }
+            this.segments.clear();
+            this.index.clear();
+        } finally {
+            this.lock.writeLock().unlock();
+        }
+    }
+
+    public static class Config extends StorageConfig {
+        public int segmentSizeMb = 256;
+        //Segments with less than this fraction of live data get compacted
+        public float compactionLiveRatio = 0.5f;
+        public long backgroundIntervalMs = 30_000;
+
+        @Override
+        public StorageBackend build(ConfigBuildCtx ctx) {
+            return new LogStructuredStorageBackend(ctx.ensurePathExists(ctx.substituteString(ctx.resolvePath())), ((long)this.segmentSizeMb)<<20, this.compactionLiveRatio, this.backgroundIntervalMs);
+        }
+
+        public static String getConfigTypeName() {
+            return "LogStructured";
+        }
+    }
+}
@@ -0,0 +1,123 @@
+package me.cortex.voxy.common.storage.logstructured;
+
+import me.cortex.voxy.common.world.ActiveSectionTracker;
+import org.lwjgl.system.MemoryUtil;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32C;
+
+//A single append only segment file, the whole file is mapped so both appends and reads are just memcpys
+//Record layout (native byte order, 8 byte aligned)
+// int magic, int size (-1 for a tombstone), long key, int epoch, int crc32c (of the key, size, epoch and payload), payload
+final class Segment {
+    static final int HEADER_SIZE = 24;
+    static final int RECORD_MAGIC = 0x4C4F4753;//LOGS
+    static final int TOMBSTONE = -1;
+
+    final int id;
+    final Path path;
+    private final FileChannel channel;
+    private final MappedByteBuffer mapping;
+    final long address;
+    final long capacity;
+
+    //All guarded by the backend lock
+    long tail;
+    long liveBytes;
+    boolean dirty;
+
+    Segment(int id, Path path, long capacity) throws IOException {
+        this.id = id;
+        this.path = path;
+        this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        //Existing segments keep the size they were created with, new ones get extended (sparse) to the capacity
+        this.capacity = Math.max(this.channel.size(), capacity);
+        this.mapping = this.channel.map(FileChannel.MapMode.READ_WRITE, 0, this.capacity);
+        this.address = MemoryUtil.memAddress(this.mapping);
+    }
+
+    static long recordSize(int size) {
+        return HEADER_SIZE + ((Math.max(size, 0) + 7L)&~7L);
+    }
+
+    static int checksum(long key, int size, int epoch, long payload, int payloadSize) {
+        var crc = new CRC32C();
+        if (payloadSize > 0) {
+            crc.update(MemoryUtil.memByteBuffer(payload, payloadSize));
+        }
+        long header = ActiveSectionTracker.mixStafford13(key ^ (((long)size)<<32) ^ Integer.toUnsignedLong(epoch));
+        return (int) (crc.getValue() ^ header ^ (header>>>32));
+    }
+
+    boolean hasRoom(long recordSize) {
+        return this.tail + recordSize <= this.capacity;
+    }
+
+    //Appends a record at the tail and returns its offset, caller must check hasRoom
+    long append(long key, int size, int epoch, long payload) {
+        long offset = this.tail;
+        long ptr = this.address + offset;
+        int payloadSize = Math.max(size, 0);
+        if (payloadSize != 0) {
+            MemoryUtil.memCopy(payload, ptr + HEADER_SIZE, payloadSize);
+        }
+        MemoryUtil.memPutLong(ptr + 8, key);
+        MemoryUtil.memPutInt(ptr + 16, epoch);
+        MemoryUtil.memPutInt(ptr + 20, checksum(key, size, epoch, ptr + HEADER_SIZE, payloadSize));
+        MemoryUtil.memPutInt(ptr + 4, size);
+        //Magic written last so a partially written record header is never seen as valid
+        MemoryUtil.memPutInt(ptr, RECORD_MAGIC);
+        this.tail += recordSize(size);
+        this.dirty = true;
+        return offset;
+    }
+
+    int getSize(long offset) {
+        return MemoryUtil.memGetInt(this.address + offset + 4);
+    }
+
+    long getKey(long offset) {
+        return MemoryUtil.memGetLong(this.address + offset + 8);
+    }
+
+    int getEpoch(long offset) {
+        return MemoryUtil.memGetInt(this.address + offset + 16);
+    }
+
+    long getPayloadAddress(long offset) {
+        return this.address + offset + HEADER_SIZE;
+    }
+
+    //Checks that a complete and intact record starts at the offset
+    boolean isValidRecord(long offset) {
+        if (this.capacity < offset + HEADER_SIZE) {
+            return false;
+        }
+        long ptr = this.address + offset;
+        if (MemoryUtil.memGetInt(ptr) != RECORD_MAGIC) {
+            return false;
+        }
+        int size = MemoryUtil.memGetInt(ptr + 4);
+        if (size < TOMBSTONE || this.capacity < offset + recordSize(size)) {
+            return false;
+        }
+        int payloadSize = Math.max(size, 0);
+        return MemoryUtil.memGetInt(ptr + 20) == checksum(MemoryUtil.memGetLong(ptr + 8), size, MemoryUtil.memGetInt(ptr + 16), ptr + HEADER_SIZE, payloadSize);
+    }
+
+    void force() {
+        this.mapping.force();
+    }
+
+    void close() {
+        try {
+            this.channel.close();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
@@ -1,17 +1,45 @@
 package me.cortex.voxy.common.storage.other;
 
+import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap;
+import me.cortex.voxy.common.storage.SectionVisitor;
 import me.cortex.voxy.common.storage.StorageBackend;
 import me.cortex.voxy.common.storage.config.ConfigBuildCtx;
 import me.cortex.voxy.common.storage.config.StorageConfig;
 import me.cortex.voxy.common.world.WorldEngine;
+import org.lwjgl.system.MemoryUtil;
 
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
 
 public class AbyssStorageAdaptor extends DelegatingStorageAdaptor {
+    //Id mapping holding the number of times the storage has been opened, every world storage is opened through this
+    // adaptor no matter the config, so anything kept outside of the storage (like the presence index file) can tell if
+    // the storage was opened without it in the meantime, type 0 isnt used by the mapper
+    public static final int SESSION_COUNTER_MAPPING_ID = 0;
+
     public AbyssStorageAdaptor(StorageBackend delegate) {
         super(delegate);
+        var buffer = MemoryUtil.memAlloc(8);
+        buffer.putLong(0, getSessionCounter(delegate) + 1);
+        this.delegate.putIdMapping(SESSION_COUNTER_MAPPING_ID, buffer);
+        MemoryUtil.memFree(buffer);
+    }
+
+    //Returns the session counter stored in the backend, 0 if it was never opened through this adaptor
+    public static long getSessionCounter(StorageBackend backend) {
+        var data = backend.getIdMappingsData().get(SESSION_COUNTER_MAPPING_ID);
+        if (data == null || data.length != 8) {
+            return 0;
+        }
+        return ByteBuffer.wrap(data).getLong();
+    }
+
+    @Override
+    public Int2ObjectOpenHashMap<byte[]> getIdMappingsData() {
+        var mappings = super.getIdMappingsData();
+        mappings.remove(SESSION_COUNTER_MAPPING_ID);
+        return mappings;
     }
 
     public int getSection(long pos) {
@@ -56,6 +84,95 @@ public class AbyssStorageAdaptor extends DelegatingStorageAdaptor {
         super.setSectionData(key, data);
     }
 
+    @Override
+    public ByteBuffer[] getSectionDataBatch(long[] keys) {
+        long[] transformed = new long[keys.length];
+        for (int i = 0; i < keys.length; i++) {
+            transformed[i] = WorldEngine.newToOldId(transform(keys[i]));
+        }
+        return this.delegate.getSectionDataBatch(transformed);
+    }
+
+    @Override
+    public boolean mayContainSection(long key) {
+        return this.delegate.mayContainSection(WorldEngine.newToOldId(transform(key)));
+    }
+
+    @Override
+    public void prefetch(long[] keys) {
+        long[] transformed = new long[keys.length];
+        for (int i = 0; i < keys.length; i++) {
+            transformed[i] = WorldEngine.newToOldId(transform(keys[i]));
+        }
+        this.delegate.prefetch(transformed);
+    }
+
+    @Override
+    public void setSectionDataBatch(long[] keys, ByteBuffer[] data) {
+        if (keys.length != data.length) {
+            throw new IllegalArgumentException("Key count does not match data count");
+        }
+        //Same as setSectionData, filter out any transformed positions
+        int count = 0;
+        for (long key : keys) {
+            if (getSection(key) == 0) count++;
+        }
+        long[] outKeys = new long[count];
+        ByteBuffer[] outData = new ByteBuffer[count];
+        int j = 0;
+        for (int i = 0; i < keys.length; i++) {
+            if (getSection(keys[i]) > 0) continue;
+            outKeys[j] = WorldEngine.newToOldId(keys[i]);
+            outData[j++] = data[i];
+        }
+        this.delegate.setSectionDataBatch(outKeys, outData);
+    }
+
+    //Only visits the sections that are actually stored, not the ones mirrored into the abyss
+    @Override
+    public boolean iterateSections(long minKey, long maxKey, boolean withData, SectionVisitor visitor) {
+        //The old key format orders by y first so a range of new keys doesnt map to a range of old keys, instead scan
+        // all the levels the range covers and filter
+        int minLvl = WorldEngine.getLevel(minKey);
+        int maxLvl = WorldEngine.getLevel(maxKey);
+        for (int lvl = minLvl; lvl <= maxLvl; lvl++) {
+            long base = ((long)lvl)<<60;
+            boolean cont = this.delegate.iterateSections(base, base|((1L<<60)-1), withData, (key, data) -> {
+                key = WorldEngine.oldToNewId(key);
+                if (!inRange(key, minKey, maxKey)) {
+                    return true;
+                }
+                return visitor.visit(key, data);
+            });
+            if (!cont) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public boolean forEachSection(int lvl, int minX, int maxX, int minY, int maxY, int minZ, int maxZ, boolean withData, SectionVisitor visitor) {
+        SectionVisitor filter = (key, data) -> {
+            key = WorldEngine.oldToNewId(key);
+            int x = WorldEngine.getX(key);
+            int z = WorldEngine.getZ(key);
+            if (x < minX || maxX < x || z < minZ || maxZ < z) {
+                return true;
+            }
+            return visitor.visit(key, data);
+        };
+        //In the old format y is the most significant coordinate followed by z, so each y slice and z run is a range
+        for (int y = Math.max(minY, -128); y <= Math.min(maxY, 127); y++) {
+            for (var zSpan : signSplit(minZ, maxZ)) {
+                if (!this.delegate.iterateSections(WorldEngine.getWorldSectionIdOld(lvl, 0, y, zSpan[0]), WorldEngine.getWorldSectionIdOld(lvl, -1, y, zSpan[1]), withData, filter)) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
     @Override
     public void deleteSectionData(long key) {
         //Dont delete save data if its a transformed position
@@ -1,22 +1,31 @@
 package me.cortex.voxy.common.storage.other;
 
 import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap;
+import me.cortex.voxy.common.storage.SectionVisitor;
 import me.cortex.voxy.common.storage.StorageBackend;
 import me.cortex.voxy.common.storage.StorageCompressor;
 import me.cortex.voxy.common.storage.config.CompressorConfig;
 import me.cortex.voxy.common.storage.config.ConfigBuildCtx;
 import me.cortex.voxy.common.storage.config.StorageConfig;
-import org.lwjgl.system.MemoryUtil;
+import me.cortex.voxy.common.util.BufferPool;
 
 import java.nio.ByteBuffer;
 import java.util.List;
 
 //Compresses the section data
 public class CompressionStorageAdaptor extends DelegatingStorageAdaptor {
+    //Id mapping type (top 2 bits of the id) reserved for compressor state, these are hidden from everything above
+    public static final int COMPRESSOR_MAPPING_TYPE = 3;
+
     private final StorageCompressor compressor;
     public CompressionStorageAdaptor(StorageCompressor compressor, StorageBackend delegate) {
         super(delegate);
         this.compressor = compressor;
+        this.compressor.attach(delegate);
+    }
+
+    public StorageCompressor getCompressor() {
+        return this.compressor;
     }
 
     @Override
@@ -26,15 +35,71 @@ public class CompressionStorageAdaptor extends DelegatingStorageAdaptor {
             return null;
         }
         var decompressed = this.compressor.decompress(data);
-        MemoryUtil.memFree(data);
+        BufferPool.release(data);
         return decompressed;
     }
 
     @Override
     public void setSectionData(long key, ByteBuffer data) {
-        var cdata = this.compressor.compress(data);
-        this.delegate.setSectionData(key, cdata);
-        MemoryUtil.memFree(cdata);
+        var cdata = this.compressor.compress(key, data);
+        try {
+            this.delegate.setSectionData(key, cdata);
+        } finally {
+            BufferPool.release(cdata);
+        }
+    }
+
+    @Override
+    public ByteBuffer[] getSectionDataBatch(long[] keys) {
+        var data = this.delegate.getSectionDataBatch(keys);
+        for (int i = 0; i < data.length; i++) {
+            if (data[i] == null) {
+                continue;
+            }
+            var decompressed = this.compressor.decompress(data[i]);
+            BufferPool.release(data[i]);
+            data[i] = decompressed;
+        }
+        return data;
+    }
+
+    @Override
+    public void setSectionDataBatch(long[] keys, ByteBuffer[] data) {
+        var cdata = new ByteBuffer[data.length];
+        try {
+            for (int i = 0; i < data.length; i++) {
+                cdata[i] = this.compressor.compress(keys[i], data[i]);
+            }
+            this.delegate.setSectionDataBatch(keys, cdata);
+        } finally {
+            for (var buffer : cdata) {
+                if (buffer != null) {
+                    BufferPool.release(buffer);
+                }
+            }
+        }
+    }
+
+    @Override
+    public boolean iterateSections(long minKey, long maxKey, boolean withData, SectionVisitor visitor) {
+        if (!withData) {
+            return this.delegate.iterateSections(minKey, maxKey, false, visitor);
+        }
+        return this.delegate.iterateSections(minKey, maxKey, true, (key, data) -> {
+            var decompressed = this.compressor.decompress(data);
+            try {
+                return visitor.visit(key, decompressed);
+            } finally {
+                BufferPool.release(decompressed);
+            }
+        });
+    }
+
+    @Override
+    public Int2ObjectOpenHashMap<byte[]> getIdMappingsData() {
+        var mappings = this.delegate.getIdMappingsData();
+        mappings.keySet().removeIf(id -> (id>>>30) == COMPRESSOR_MAPPING_TYPE);
+        return mappings;
     }
 
     @Override
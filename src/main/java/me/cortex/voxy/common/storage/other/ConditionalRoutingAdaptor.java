@@ -0,0 +1,295 @@
+package me.cortex.voxy.common.storage.other;
+
+import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap;
+import me.cortex.voxy.common.storage.SectionVisitor;
+import me.cortex.voxy.common.storage.StorageBackend;
+import me.cortex.voxy.common.world.WorldEngine;
+import org.lwjgl.system.MemoryUtil;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+//Sends each section to one of multiple backends depending on its lod level and optionally its position, e.g. to put
+// the lod 0 sections (most of the io and space) on a fast disk and the rest somewhere else
+//NOTE: this sits below the abyss adaptor so the keys are in the old key format
+public class ConditionalRoutingAdaptor extends StorageBackend {
+    public record Route(int minLevel, int maxLevel, int[] minCoord, int[] maxCoord, StorageBackend backend) {
+        private boolean matches(long key) {
+            int lvl = WorldEngine.getLevel(key);
+            if (lvl < this.minLevel || this.maxLevel < lvl) {
+                return false;
+            }
+            if (this.minCoord == null && this.maxCoord == null) {
+                return true;
+            }
+            int x = WorldEngine.getXOld(key);
+            int y = WorldEngine.getYOld(key);
+            int z = WorldEngine.getZOld(key);
+            if (this.minCoord != null && (x < this.minCoord[0] || y < this.minCoord[1] || z < this.minCoord[2])) {
+                return false;
+            }
+            return this.maxCoord == null || (x <= this.maxCoord[0] && y <= this.maxCoord[1] && z <= this.maxCoord[2]);
+        }
+    }
+
+    private final Route[] routes;
+    private final StorageBackend fallback;
+    //Backend per lod level for levels where the route only depends on the level, null if the position is needed
+    private final StorageBackend[] levelRoutes = new StorageBackend[16];
+    //Every distinct backend, the order is the routes order then the fallback
+    private final StorageBackend[] backends;
+
+    public ConditionalRoutingAdaptor(List<Route> routes, StorageBackend fallback) {
+        this.routes = routes.toArray(new Route[0]);
+        this.fallback = fallback;
+        for (int lvl = 0; lvl < 16; lvl++) {
+            StorageBackend levelRoute = fallback;
+            for (var route : this.routes) {
+                if (lvl < route.minLevel || route.maxLevel < lvl) {
+                    continue;
+                }
+                if (route.minCoord != null || route.maxCoord != null) {
+                    levelRoute = null;
+                } else {
+                    levelRoute = route.backend;
+                }
+                break;
+            }
+            this.levelRoutes[lvl] = levelRoute;
+        }
+        List<StorageBackend> backends = new ArrayList<>();
+        for (var route : this.routes) {
+            if (!backends.contains(route.backend)) {
+                backends.add(route.backend);
+            }
+        }
+        if (fallback != null && !backends.contains(fallback)) {
+            backends.add(fallback);
+        }
+        this.backends = backends.toArray(new StorageBackend[0]);
+    }
+
+    //Returns null if no route matches and there is no fallback
+    private StorageBackend route(long key) {
+        var backend = this.levelRoutes[WorldEngine.getLevel(key)];
+        if (backend != null) {
+            return backend;
+        }
+        for (var route : this.routes) {
+            if (route.matches(key)) {
+                return route.backend;
+            }
+        }
+        return this.fallback;
+    }
+
+    private StorageBackend routeOrThrow(long key) {
+        var backend = this.route(key);
+        if (backend == null) {
+            throw new IllegalStateException("No storage route for section " + WorldEngine.getLevel(key) + ", " + WorldEngine.getXOld(key) + ", " + WorldEngine.getYOld(key) + ", " + WorldEngine.getZOld(key));
+        }
+        return backend;
+    }
+
+    private int backendIndex(long key) {
+        var backend = this.route(key);
+        if (backend == null) {
+            return -1;
+        }
+        for (int i = 0; i < this.backends.length; i++) {
+            if (this.backends[i] == backend) {
+                return i;
+            }
+        }
+        throw new IllegalStateException();
+    }
+
+    @Override
+    public ByteBuffer getSectionData(long key) {
+        var backend = this.route(key);
+        return backend == null ? null : backend.getSectionData(key);
+    }
+
+    @Override
+    public boolean mayContainSection(long key) {
+        var backend = this.route(key);
+        return backend != null && backend.mayContainSection(key);
+    }
+
+    @Override
+    public void setSectionData(long key, ByteBuffer data) {
+        this.routeOrThrow(key).setSectionData(key, data);
+    }
+
+    @Override
+    public void deleteSectionData(long key) {
+        var backend = this.route(key);
+        if (backend != null) {
+            backend.deleteSectionData(key);
+        }
+    }
+
+    @Override
+    public ByteBuffer[] getSectionDataBatch(long[] keys) {
+        var out = new ByteBuffer[keys.length];
+        int[] targets = new int[keys.length];
+        int[] counts = new int[this.backends.length];
+        for (int i = 0; i < keys.length; i++) {
+            targets[i] = this.backendIndex(keys[i]);
+            if (targets[i] != -1) {
+                counts[targets[i]]++;
+            }
+        }
+        for (int target = 0; target < this.backends.length; target++) {
+            if (counts[target] == 0) continue;
+            long[] targetKeys = new long[counts[target]];
+            int[] indices = new int[counts[target]];
+            int j = 0;
+            for (int i = 0; i < keys.length; i++) {
+                if (targets[i] != target) continue;
+                indices[j] = i;
+                targetKeys[j++] = keys[i];
+            }
+            var result = this.backends[target].getSectionDataBatch(targetKeys);
+            for (j = 0; j < indices.length; j++) {
+                out[indices[j]] = result[j];
+            }
+        }
+        return out;
+    }
+
+    @Override
+    public void setSectionDataBatch(long[] keys, ByteBuffer[] data) {
+        if (keys.length != data.length) {
+            throw new IllegalArgumentException("Key count does not match data count");
+        }
+        int[] targets = new int[keys.length];
+        int[] counts = new int[this.backends.length];
+        for (int i = 0; i < keys.length; i++) {
+            targets[i] = this.backendIndex(keys[i]);
+            if (targets[i] == -1) {
+                this.routeOrThrow(keys[i]);
+            }
+            counts[targets[i]]++;
+        }
+        for (int target = 0; target < this.backends.length; target++) {
+            if (counts[target] == 0) continue;
+            long[] targetKeys = new long[counts[target]];
+            ByteBuffer[] targetData = new ByteBuffer[counts[target]];
+            int j = 0;
+            for (int i = 0; i < keys.length; i++) {
+                if (targets[i] != target) continue;
+                targetKeys[j] = keys[i];
+                targetData[j++] = data[i];
+            }
+            this.backends[target].setSectionDataBatch(targetKeys, targetData);
+        }
+    }
+
+    @Override
+    public void prefetch(long[] keys) {
+        int[] targets = new int[keys.length];
+        int[] counts = new int[this.backends.length];
+        for (int i = 0; i < keys.length; i++) {
+            targets[i] = this.backendIndex(keys[i]);
+            if (targets[i] != -1) {
+                counts[targets[i]]++;
+            }
+        }
+        for (int target = 0; target < this.backends.length; target++) {
+            if (counts[target] == 0) continue;
+            long[] targetKeys = new long[counts[target]];
+            int j = 0;
+            for (int i = 0; i < keys.length; i++) {
+                if (targets[i] == target) {
+                    targetKeys[j++] = keys[i];
+                }
+            }
+            this.backends[target].prefetch(targetKeys);
+        }
+    }
+
+    @Override
+    public boolean iterateSections(long minKey, long maxKey, boolean withData, SectionVisitor visitor) {
+        //Only visit the sections a backend is currently the route for, so data left over from a config change isnt
+        // visited twice
+        for (var backend : this.backends) {
+            boolean cont = backend.iterateSections(minKey, maxKey, withData, (key, data) -> {
+                if (this.route(key) != backend) {
+                    return true;
+                }
+                return visitor.visit(key, data);
+            });
+            if (!cont) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public void putIdMapping(int id, ByteBuffer data) {
+        //Every backend gets all the mappings so each of them can be read on its own
+        for (var backend : this.backends) {
+            backend.putIdMapping(id, data);
+        }
+    }
+
+    @Override
+    public Int2ObjectOpenHashMap<byte[]> getIdMappingsData() {
+        //Merge the mappings from all the backends, a backend that was added later might be missing some, the first
+        // backend wins on conflicts
+        var out = new Int2ObjectOpenHashMap<byte[]>();
+        var perBackend = new ArrayList<Int2ObjectOpenHashMap<byte[]>>(this.backends.length);
+        boolean mismatched = false;
+        for (var backend : this.backends) {
+            var mappings = backend.getIdMappingsData();
+            perBackend.add(mappings);
+            for (var entry : mappings.int2ObjectEntrySet()) {
+                var existing = out.putIfAbsent(entry.getIntKey(), entry.getValue());
+                mismatched |= existing != null && !Arrays.equals(existing, entry.getValue());
+            }
+        }
+        if (mismatched) {
+            System.err.println("Error id mappings not matching across routed backends, using the first backend");
+        }
+        //Fill in the mappings any backend is missing
+        for (int i = 0; i < this.backends.length; i++) {
+            var mappings = perBackend.get(i);
+            for (var entry : out.int2ObjectEntrySet()) {
+                if (Arrays.equals(mappings.get(entry.getIntKey()), entry.getValue())) {
+                    continue;
+                }
+                var buffer = MemoryUtil.memAlloc(entry.getValue().length);
+                try {
+                    buffer.put(entry.getValue()).rewind();
+                    this.backends[i].putIdMapping(entry.getIntKey(), buffer);
+                } finally {
+                    MemoryUtil.memFree(buffer);
+                }
+            }
+        }
+        return out;
+    }
+
+    @Override
+    public void flush() {
+        for (var backend : this.backends) {
+            backend.flush();
+        }
+    }
+
+    @Override
+    public void close() {
+        for (var backend : this.backends) {
+            backend.close();
+        }
+    }
+
+    @Override
+    public List<StorageBackend> getChildBackends() {
+        return List.of(this.backends);
+    }
+}
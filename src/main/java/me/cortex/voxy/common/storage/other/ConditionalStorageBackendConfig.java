@@ -3,14 +3,85 @@ package me.cortex.voxy.common.storage.other;
 import me.cortex.voxy.common.storage.StorageBackend;
 import me.cortex.voxy.common.storage.config.ConfigBuildCtx;
 import me.cortex.voxy.common.storage.config.StorageConfig;
-import org.apache.commons.lang3.NotImplementedException;
+
+import java.util.ArrayList;
+import java.util.List;
 
 //A conditional storage backend depending on build time config, this enables conditional backends depending on the
 // dimension as an example
+//Routes are checked in order, the dimension and world conditions are evaluated when building, the lod level and
+// coordinate conditions are evaluated per section, sections that match no route go to the fallback
 public class ConditionalStorageBackendConfig extends StorageConfig {
+    public static class Route {
+        //Build time conditions, null matches anything
+        public String dimension;
+        public String worldIdentifier;
+        //Per section conditions, inclusive
+        public int minLevel = 0;
+        public int maxLevel = 15;
+        //Optional inclusive section coordinate box at the sections own lod level, null means no restriction
+        public int[] minCoord;
+        public int[] maxCoord;
+        public StorageConfig storage;
+
+        private boolean matchesBuild(ConfigBuildCtx ctx) {
+            return matches(this.dimension, ctx.getProperty(ConfigBuildCtx.DIMENSION)) && matches(this.worldIdentifier, ctx.getProperty(ConfigBuildCtx.WORLD_IDENTIFIER));
+        }
+
+        private static boolean matches(String condition, String value) {
+            return condition == null || condition.equals(value);
+        }
+
+        private boolean isUnconditional() {
+            return this.minLevel <= 0 && 15 <= this.maxLevel && this.minCoord == null && this.maxCoord == null;
+        }
+    }
+
+    public List<Route> routes = new ArrayList<>();
+    public StorageConfig fallback;
+
     @Override
     public StorageBackend build(ConfigBuildCtx ctx) {
-        throw new NotImplementedException();
+        List<ConditionalRoutingAdaptor.Route> built = new ArrayList<>();
+        for (var route : this.routes) {
+            if (!route.matchesBuild(ctx)) {
+                continue;
+            }
+            if (route.storage == null) {
+                throw new IllegalStateException("Conditional route has no storage");
+            }
+            if ((route.minCoord != null && route.minCoord.length != 3) || (route.maxCoord != null && route.maxCoord.length != 3)) {
+                throw new IllegalStateException("Conditional route coordinates must be [x, y, z]");
+            }
+            //The first route that matches every section shadows everything after it, so it can just be used directly
+            if (built.isEmpty() && route.isUnconditional()) {
+                return route.storage.build(ctx);
+            }
+            built.add(new ConditionalRoutingAdaptor.Route(route.minLevel, route.maxLevel, route.minCoord, route.maxCoord, route.storage.build(ctx)));
+            if (route.isUnconditional()) {
+                break;
+            }
+        }
+        StorageBackend fallback = this.fallback == null ? null : this.fallback.build(ctx);
+        if (built.isEmpty()) {
+            if (fallback == null) {
+                throw new IllegalStateException("No conditional route matched and there is no fallback");
+            }
+            return fallback;
+        }
+        return new ConditionalRoutingAdaptor(built, fallback);
+    }
+
+    @Override
+    public List<StorageConfig> getChildStorageConfigs() {
+        List<StorageConfig> configs = new ArrayList<>();
+        for (var route : this.routes) {
+            configs.add(route.storage);
+        }
+        if (this.fallback != null) {
+            configs.add(this.fallback);
+        }
+        return configs;
     }
 
     public static String getConfigTypeName() {
@@ -1,6 +1,7 @@
 package me.cortex.voxy.common.storage.other;
 
 import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap;
+import me.cortex.voxy.common.storage.SectionVisitor;
 import me.cortex.voxy.common.storage.StorageBackend;
 import me.cortex.voxy.common.storage.StorageCompressor;
 import me.cortex.voxy.common.storage.config.CompressorConfig;
@@ -32,6 +33,22 @@ public class DelegatingStorageAdaptor extends StorageBackend {
         this.delegate.deleteSectionData(key);
     }
 
+    @Override
+    public boolean mayContainSection(long key) {
+        return this.delegate.mayContainSection(key);
+    }
+
+    //Prefetching is passed down so the read happens at the bottom without any decoding by the adaptors in between
+    @Override
+    public void prefetch(long[] keys) {
+        this.delegate.prefetch(keys);
+    }
+
+    @Override
+    public boolean iterateSections(long minKey, long maxKey, boolean withData, SectionVisitor visitor) {
+        return this.delegate.iterateSections(minKey, maxKey, withData, visitor);
+    }
+
     @Override
     public void putIdMapping(int id, ByteBuffer data) {
         this.delegate.putIdMapping(id, data);
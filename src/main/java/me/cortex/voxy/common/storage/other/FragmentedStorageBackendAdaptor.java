@@ -1,28 +1,106 @@
 package me.cortex.voxy.common.storage.other;
 
 import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap;
-import it.unimi.dsi.fastutil.objects.Object2IntMap;
 import it.unimi.dsi.fastutil.objects.Object2IntOpenHashMap;
+import me.cortex.voxy.common.storage.SectionVisitor;
 import me.cortex.voxy.common.storage.StorageBackend;
 import me.cortex.voxy.common.storage.config.ConfigBuildCtx;
 import me.cortex.voxy.common.storage.config.StorageConfig;
 import net.minecraft.util.math.random.RandomSeed;
+import org.lwjgl.system.MemoryUtil;
 
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
 
 //Segments the section data into multiple dbs
+//Operations that touch every fragment (flush, close, id mappings) are fanned out over a small pool of threads
 public class FragmentedStorageBackendAdaptor extends StorageBackend {
     private final StorageBackend[] backends;
+    private final ExecutorService executor;
+    //Id mappings are written synchronously to the first mappingReplicas fragments, the rest get them in the background
+    private final int mappingReplicas;
+    //Chain of the background mapping writes, so they are applied in order
+    private CompletableFuture<Void> backgroundWrites = CompletableFuture.completedFuture(null);
 
     public FragmentedStorageBackendAdaptor(StorageBackend... backends) {
+        this(4, backends.length, backends);
+    }
+
+    public FragmentedStorageBackendAdaptor(int parallelism, int mappingReplicas, StorageBackend... backends) {
         this.backends = backends;
         int len = backends.length;
-        if ((len&(len-1)) != (len-1)) {
+        if (len == 0 || (len&(len-1)) != 0) {
             throw new IllegalArgumentException("Backend count not a power of 2");
         }
+        this.mappingReplicas = Math.max(1, Math.min(mappingReplicas, len));
+        var threadId = new AtomicInteger();
+        int threads = Math.max(1, Math.min(parallelism, len));
+        var executor = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), runnable -> {
+            var thread = new Thread(runnable);
+            thread.setName("Fragmented storage io #" + threadId.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.allowCoreThreadTimeOut(true);
+        this.executor = executor;
+    }
+
+    //Runs the function on the fragments in [from, to) in parallel and waits for all of them, if any failed, all the
+    // failures are thrown together once everything has finished
+    private void fanOut(String operation, int from, int to, Consumer<StorageBackend> function) {
+        List<CompletableFuture<Void>> futures = new ArrayList<>(to - from);
+        for (int i = from; i < to; i++) {
+            var backend = this.backends[i];
+            futures.add(CompletableFuture.runAsync(() -> function.accept(backend), this.executor));
+        }
+        List<Throwable> errors = new ArrayList<>();
+        for (var future : futures) {
+            try {
+                future.get();
+            } catch (ExecutionException e) {
+                errors.add(e.getCause());
+            } catch (InterruptedException e) {
+                errors.add(e);
+            }
+        }
+        if (!errors.isEmpty()) {
+            var error = new RuntimeException(operation + " failed on " + errors.size() + " of " + futures.size() + " fragments", errors.get(0));
+            for (int i = 1; i < errors.size(); i++) {
+                error.addSuppressed(errors.get(i));
+            }
+            throw error;
+        }
+    }
+
+    private void fanOut(String operation, Consumer<StorageBackend> function) {
+        this.fanOut(operation, 0, this.backends.length, function);
+    }
+
+    //Queues a write to run in the background after all previously queued ones
+    private synchronized void queueBackground(Runnable write) {
+        this.backgroundWrites = this.backgroundWrites.thenRunAsync(write, this.executor).exceptionally(e -> {
+            System.err.println("Background id mapping write failed, it will be repaired on next load");
+            e.printStackTrace();
+            return null;
+        });
+    }
+
+    private void awaitBackground() {
+        CompletableFuture<Void> writes;
+        synchronized (this) {
+            writes = this.backgroundWrites;
+        }
+        writes.join();
     }
 
     private int getSegmentId(long key) {
@@ -43,16 +121,97 @@ public class FragmentedStorageBackendAdaptor extends StorageBackend {
         this.backends[this.getSegmentId(key)].setSectionData(key, data);
     }
 
+    @Override
+    public boolean mayContainSection(long key) {
+        return this.backends[this.getSegmentId(key)].mayContainSection(key);
+    }
+
     @Override
     public void deleteSectionData(long key) {
         this.backends[this.getSegmentId(key)].deleteSectionData(key);
     }
 
     @Override
-    public void putIdMapping(int id, ByteBuffer data) {
-        //Replicate the mappings over all the dbs to mean the chance of recovery in case of corruption is 30x
+    public ByteBuffer[] getSectionDataBatch(long[] keys) {
+        var out = new ByteBuffer[keys.length];
+        //Split the batch up into per fragment batches
+        int[] fragments = new int[keys.length];
+        int[] counts = new int[this.backends.length];
+        for (int i = 0; i < keys.length; i++) {
+            fragments[i] = this.getSegmentId(keys[i]);
+            counts[fragments[i]]++;
+        }
+        for (int fragment = 0; fragment < this.backends.length; fragment++) {
+            if (counts[fragment] == 0) continue;
+            long[] fragmentKeys = new long[counts[fragment]];
+            int[] indices = new int[counts[fragment]];
+            int j = 0;
+            for (int i = 0; i < keys.length; i++) {
+                if (fragments[i] != fragment) continue;
+                indices[j] = i;
+                fragmentKeys[j++] = keys[i];
+            }
+            var result = this.backends[fragment].getSectionDataBatch(fragmentKeys);
+            for (j = 0; j < indices.length; j++) {
+                out[indices[j]] = result[j];
+            }
+        }
+        return out;
+    }
+
+    @Override
+    public void setSectionDataBatch(long[] keys, ByteBuffer[] data) {
+        if (keys.length != data.length) {
+            throw new IllegalArgumentException("Key count does not match data count");
+        }
+        int[] fragments = new int[keys.length];
+        int[] counts = new int[this.backends.length];
+        for (int i = 0; i < keys.length; i++) {
+            fragments[i] = this.getSegmentId(keys[i]);
+            counts[fragments[i]]++;
+        }
+        for (int fragment = 0; fragment < this.backends.length; fragment++) {
+            if (counts[fragment] == 0) continue;
+            long[] fragmentKeys = new long[counts[fragment]];
+            ByteBuffer[] fragmentData = new ByteBuffer[counts[fragment]];
+            int j = 0;
+            for (int i = 0; i < keys.length; i++) {
+                if (fragments[i] != fragment) continue;
+                fragmentKeys[j] = keys[i];
+                fragmentData[j++] = data[i];
+            }
+            this.backends[fragment].setSectionDataBatch(fragmentKeys, fragmentData);
+        }
+    }
+
+    @Override
+    public boolean iterateSections(long minKey, long maxKey, boolean withData, SectionVisitor visitor) {
+        //Every key lives in exactly one fragment so just go through them one after the other
         for (var backend : this.backends) {
-            backend.putIdMapping(id, data);
+            if (!backend.iterateSections(minKey, maxKey, withData, visitor)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public void putIdMapping(int id, ByteBuffer data) {
+        //The mappings are replicated so they can be recovered in case of corruption of a fragment
+        this.fanOut("Id mapping write", 0, this.mappingReplicas, backend -> backend.putIdMapping(id, data.duplicate()));
+        if (this.mappingReplicas != this.backends.length) {
+            //The caller doesnt hand over the buffer so need a copy for the background write
+            var copy = MemoryUtil.memAlloc(data.remaining());
+            MemoryUtil.memCopy(data, copy);
+            this.queueBackground(() -> {
+                try {
+                    for (int i = this.mappingReplicas; i < this.backends.length; i++) {
+                        this.backends[i].putIdMapping(id, copy.duplicate());
+                    }
+                } finally {
+                    MemoryUtil.memFree(copy);
+                }
+            });
         }
     }
 
@@ -70,64 +229,98 @@ public class FragmentedStorageBackendAdaptor extends StorageBackend {
 
     @Override
     public Int2ObjectOpenHashMap<byte[]> getIdMappingsData() {
-        Object2IntOpenHashMap<Int2ObjectOpenHashMap<EqualingArray>> verification = new Object2IntOpenHashMap<>();
-        Int2ObjectOpenHashMap<EqualingArray> any = null;
+        //A fragment that fails to read is just treated as having no mappings, it gets repaired from the others
+        List<CompletableFuture<Int2ObjectOpenHashMap<byte[]>>> futures = new ArrayList<>(this.backends.length);
         for (var backend : this.backends) {
-            var mappings = backend.getIdMappingsData();
-            if (mappings.isEmpty()) {
-                //TODO: log a warning and attempt to replicate the data the other fragments
-                continue;
-            }
-            var repackaged = new Int2ObjectOpenHashMap<EqualingArray>(mappings.size());
-            for (var entry : mappings.int2ObjectEntrySet()) {
-                repackaged.put(entry.getIntKey(), new EqualingArray(entry.getValue()));
+            futures.add(CompletableFuture.supplyAsync(backend::getIdMappingsData, this.executor));
+        }
+        List<Int2ObjectOpenHashMap<byte[]>> mappings = new ArrayList<>(this.backends.length);
+        int failed = 0;
+        for (int i = 0; i < futures.size(); i++) {
+            try {
+                mappings.add(futures.get(i).get());
+            } catch (InterruptedException | ExecutionException e) {
+                System.err.println("Failed to read id mappings from fragment " + i);
+                e.printStackTrace();
+                mappings.add(new Int2ObjectOpenHashMap<>());
+                failed++;
             }
-            verification.addTo(repackaged, 1);
-            any = repackaged;
         }
-        if (any == null) {
-            return new Int2ObjectOpenHashMap<>();
+        if (failed == this.backends.length) {
+            throw new IllegalStateException("Failed to read id mappings from all fragments");
         }
 
-        if (verification.size() != 1) {
-            System.err.println("Error id mapping not matching across all fragments, attempting to recover");
-            Object2IntMap.Entry<Int2ObjectOpenHashMap<EqualingArray>> maxEntry = null;
-            for (var entry : verification.object2IntEntrySet()) {
-                if (maxEntry == null) { maxEntry = entry; }
-                else {
-                    if (maxEntry.getIntValue() < entry.getIntValue()) {
-                        maxEntry = entry;
-                    }
+        //Vote per id, fragments that are missing an id (background replication didnt finish) dont vote, ties go to
+        // the lowest fragment since those are written synchronously
+        var out = new Int2ObjectOpenHashMap<byte[]>();
+        var allIds = new Int2ObjectOpenHashMap<Object2IntOpenHashMap<EqualingArray>>();
+        for (var mapping : mappings) {
+            for (var entry : mapping.int2ObjectEntrySet()) {
+                allIds.computeIfAbsent(entry.getIntKey(), a->new Object2IntOpenHashMap<>()).addTo(new EqualingArray(entry.getValue()), 1);
+            }
+        }
+        boolean mismatched = false;
+        for (var entry : allIds.int2ObjectEntrySet()) {
+            var votes = entry.getValue();
+            mismatched |= votes.size() != 1;
+            EqualingArray best = null;
+            int bestVotes = 0;
+            for (var mapping : mappings) {
+                var value = mapping.get(entry.getIntKey());
+                if (value == null) continue;
+                var wrapped = new EqualingArray(value);
+                int count = votes.getInt(wrapped);
+                if (bestVotes < count) {
+                    best = wrapped;
+                    bestVotes = count;
                 }
             }
+            out.put(entry.getIntKey(), best.bytes);
+        }
+        if (mismatched) {
+            System.err.println("Error id mapping not matching across all fragments, attempting to recover");
+        }
 
-            var mapping = maxEntry.getKey();
-
-            var out = new Int2ObjectOpenHashMap<byte[]>(mapping.size());
-            for (var entry : mapping.int2ObjectEntrySet()) {
-                out.put(entry.getIntKey(), entry.getValue().bytes);
-            }
-            return out;
-        } else {
-            var out = new Int2ObjectOpenHashMap<byte[]>(any.size());
-            for (var entry : any.int2ObjectEntrySet()) {
-                out.put(entry.getIntKey(), entry.getValue().bytes);
+        //Write the agreed mappings to any fragment that is missing them or has a different value
+        for (int i = 0; i < this.backends.length; i++) {
+            var mapping = mappings.get(i);
+            var backend = this.backends[i];
+            var missing = new Int2ObjectOpenHashMap<byte[]>();
+            for (var entry : out.int2ObjectEntrySet()) {
+                if (!Arrays.equals(mapping.get(entry.getIntKey()), entry.getValue())) {
+                    missing.put(entry.getIntKey(), entry.getValue());
+                }
             }
-            return out;
+            if (missing.isEmpty()) continue;
+            System.err.println("Repairing " + missing.size() + " id mappings in fragment " + i);
+            this.queueBackground(() -> {
+                for (var entry : missing.int2ObjectEntrySet()) {
+                    var buffer = MemoryUtil.memAlloc(entry.getValue().length);
+                    try {
+                        buffer.put(entry.getValue()).rewind();
+                        backend.putIdMapping(entry.getIntKey(), buffer);
+                    } finally {
+                        MemoryUtil.memFree(buffer);
+                    }
+                }
+            });
         }
+        return out;
     }
 
     @Override
     public void flush() {
-        for (var db : this.backends) {
-            db.flush();
-        }
+        this.awaitBackground();
+        this.fanOut("Flush", StorageBackend::flush);
     }
 
     @Override
     public void close() {
-        for (var db : this.backends) {
-            db.close();
+        try {
+            this.awaitBackground();
+            this.fanOut("Close", StorageBackend::close);
+        } finally {
+            this.executor.shutdown();
         }
     }
 
@@ -138,6 +331,11 @@ public class FragmentedStorageBackendAdaptor extends StorageBackend {
 
     public static class Config extends StorageConfig {
         public List<StorageConfig> backends = new ArrayList<>();
+        //Max number of fragments worked on at the same time for flush, close and id mappings
+        public int parallelism = 4;
+        //Number of fragments id mappings are written to before putIdMapping returns, the others are written in the
+        // background, 0 means all of them
+        public int mappingReplicas = 0;
 
         @Override
         public List<StorageConfig> getChildStorageConfigs() {
@@ -151,7 +349,7 @@ public class FragmentedStorageBackendAdaptor extends StorageBackend {
                 //TODO: put each backend in a different folder?
                 builtBackends[i] = this.backends.get(i).build(ctx);
             }
-            return new FragmentedStorageBackendAdaptor(builtBackends);
+            return new FragmentedStorageBackendAdaptor(this.parallelism, this.mappingReplicas<=0?builtBackends.length:this.mappingReplicas, builtBackends);
         }
 
         public static String getConfigTypeName() {
@@ -0,0 +1,315 @@
+package me.cortex.voxy.common.storage.other;
+
+import me.cortex.voxy.common.storage.StorageBackend;
+import me.cortex.voxy.common.storage.config.ConfigBuildCtx;
+import me.cortex.voxy.common.world.ActiveSectionTracker;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.zip.CRC32C;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+//Keeps a per lod level bloom filter of every section key that was ever written, so reads of sections that were never
+// generated (most of them when exploring) are answered without touching the delegate at all
+//Deletes dont remove bits since a bloom filter cant do that, they just cause a false positive which costs a normal read
+public class PresenceIndexAdaptor extends DelegatingStorageAdaptor {
+    private static final int MAGIC = 0x50524553;//PRES
+    private static final int VERSION = 2;
+    private static final int HASH_COUNT = 3;
+    private static final VarHandle BITS = MethodHandles.arrayElementVarHandle(long[].class);
+
+    private final Path file;
+    private final int bitsLog2;
+    private final long mask;
+    //Filters are only allocated for levels that actually have sections
+    private final AtomicReferenceArray<long[]> filters = new AtomicReferenceArray<>(16);
+    //Until the filter is complete every key has to be treated as possibly present
+    private volatile boolean ready;
+    private volatile boolean running = true;
+    private final Thread rebuildThread;
+
+    public PresenceIndexAdaptor(Path file, int bitsLog2, StorageBackend delegate) {
+        super(delegate);
+        if (bitsLog2 < 6 || 36 < bitsLog2) {
+            throw new IllegalArgumentException("Filter size must be between 2^6 and 2^36 bits");
+        }
+        this.file = file;
+        this.bitsLog2 = bitsLog2;
+        this.mask = (1L<<bitsLog2)-1;
+
+        if (Files.exists(this.file) && this.load()) {
+            this.ready = true;
+        }
+        //The file is only valid until something gets written, its rewritten on a clean close so if the game crashes
+        // the filter gets rebuilt instead of missing the sections written since
+        try {
+            Files.deleteIfExists(this.file);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+
+        if (this.ready) {
+            this.rebuildThread = null;
+        } else {
+            this.rebuildThread = new Thread(this::rebuild);
+            this.rebuildThread.setName("Voxy presence index rebuild");
+            this.rebuildThread.setDaemon(true);
+            this.rebuildThread.start();
+        }
+    }
+
+    private void rebuild() {
+        try {
+            boolean completed = this.delegate.iterateAllSections(false, (key, data) -> {
+                this.add(key);
+                return this.running;
+            });
+            if (completed) {
+                this.ready = true;
+            }
+        } catch (Exception e) {
+            System.err.println("Failed to rebuild section presence index, all sections will be read from storage");
+            e.printStackTrace();
+        }
+    }
+
+    private long[] getFilter(int lvl) {
+        var filter = this.filters.get(lvl);
+        if (filter == null) {
+            filter = new long[(int) ((1L<<this.bitsLog2)>>>6)];
+            if (!this.filters.compareAndSet(lvl, null, filter)) {
+                filter = this.filters.get(lvl);
+            }
+        }
+        return filter;
+    }
+
+    private static int getLevel(long key) {
+        return (int) (key>>>60);
+    }
+
+    private void add(long key) {
+        var filter = this.getFilter(getLevel(key));
+        long hash = ActiveSectionTracker.mixStafford13(key);
+        long step = ActiveSectionTracker.mixStafford13(hash)|1;
+        for (int i = 0; i < HASH_COUNT; i++) {
+            long bit = (hash + i * step) & this.mask;
+            BITS.getAndBitwiseOr(filter, (int) (bit>>>6), 1L<<(bit&63));
+        }
+    }
+
+    @Override
+    public boolean mayContainSection(long key) {
+        if (!this.ready) {
+            return true;
+        }
+        var filter = this.filters.get(getLevel(key));
+        if (filter == null) {
+            return false;
+        }
+        long hash = ActiveSectionTracker.mixStafford13(key);
+        long step = ActiveSectionTracker.mixStafford13(hash)|1;
+        for (int i = 0; i < HASH_COUNT; i++) {
+            long bit = (hash + i * step) & this.mask;
+            if ((((long) BITS.getVolatile(filter, (int) (bit>>>6))) & (1L<<(bit&63))) == 0) {
+                return false;
+            }
+        }
+        return this.delegate.mayContainSection(key);
+    }
+
+    @Override
+    public ByteBuffer getSectionData(long key) {
+        if (!this.mayContainSection(key)) {
+            return null;
+        }
+        return super.getSectionData(key);
+    }
+
+    @Override
+    public ByteBuffer[] getSectionDataBatch(long[] keys) {
+        int count = 0;
+        for (long key : keys) {
+            if (this.mayContainSection(key)) count++;
+        }
+        if (count == keys.length) {
+            return this.delegate.getSectionDataBatch(keys);
+        }
+        var out = new ByteBuffer[keys.length];
+        if (count == 0) {
+            return out;
+        }
+        long[] present = new long[count];
+        int[] index = new int[count];
+        int j = 0;
+        for (int i = 0; i < keys.length; i++) {
+            if (this.mayContainSection(keys[i])) {
+                present[j] = keys[i];
+                index[j++] = i;
+            }
+        }
+        var data = this.delegate.getSectionDataBatch(present);
+        for (int i = 0; i < count; i++) {
+            out[index[i]] = data[i];
+        }
+        return out;
+    }
+
+    @Override
+    public CompletableFuture<ByteBuffer> getSectionDataAsync(long key) {
+        if (!this.mayContainSection(key)) {
+            return CompletableFuture.completedFuture(null);
+        }
+        return super.getSectionDataAsync(key);
+    }
+
+    @Override
+    public void prefetch(long[] keys) {
+        long[] present = new long[keys.length];
+        int count = 0;
+        for (long key : keys) {
+            if (this.mayContainSection(key)) present[count++] = key;
+        }
+        if (count != 0) {
+            this.delegate.prefetch(count == keys.length ? present : Arrays.copyOf(present, count));
+        }
+    }
+
+    //The key is added before the write so a reader never sees data that isnt in the filter
+    @Override
+    public void setSectionData(long key, ByteBuffer data) {
+        this.add(key);
+        super.setSectionData(key, data);
+    }
+
+    @Override
+    public void setSectionDataBatch(long[] keys, ByteBuffer[] data) {
+        for (long key : keys) {
+            this.add(key);
+        }
+        this.delegate.setSectionDataBatch(keys, data);
+    }
+
+    private boolean load() {
+        //The buffering has to be below the checksum so it doesnt read ahead into the trailing checksum
+        try (var crcStream = new CheckedInputStream(new BufferedInputStream(Files.newInputStream(this.file), 1<<16), new CRC32C());
+             var in = new DataInputStream(crcStream)) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION || in.readInt() != this.bitsLog2) {
+                System.err.println("Section presence index has a different format or size, rebuilding");
+                return false;
+            }
+            //If the storage was opened without this adaptor since the file was saved, sections written then are
+            // missing from it
+            if (in.readLong() != AbyssStorageAdaptor.getSessionCounter(this.delegate)) {
+                System.err.println("Section presence index is from a different storage session, rebuilding");
+                return false;
+            }
+            int levelMask = in.readInt();
+            for (int lvl = 0; lvl < 16; lvl++) {
+                if ((levelMask&(1<<lvl)) == 0) continue;
+                var filter = this.getFilter(lvl);
+                for (int i = 0; i < filter.length; i++) {
+                    filter[i] = in.readLong();
+                }
+            }
+            long expected = crcStream.getChecksum().getValue();
+            if (in.readLong() != expected) {
+                System.err.println("Section presence index is corrupt, rebuilding");
+                for (int lvl = 0; lvl < 16; lvl++) {
+                    this.filters.set(lvl, null);
+                }
+                return false;
+            }
+            return true;
+        } catch (IOException e) {
+            System.err.println("Failed to load section presence index, rebuilding");
+            e.printStackTrace();
+            for (int lvl = 0; lvl < 16; lvl++) {
+                this.filters.set(lvl, null);
+            }
+            return false;
+        }
+    }
+
+    private void save() {
+        var tmp = this.file.resolveSibling(this.file.getFileName() + ".tmp");
+        try {
+            var crc = new CRC32C();
+            try (OutputStream raw = Files.newOutputStream(tmp);
+                 var crcStream = new CheckedOutputStream(new BufferedOutputStream(raw, 1<<16), crc);
+                 var out = new DataOutputStream(crcStream)) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeInt(this.bitsLog2);
+                out.writeLong(AbyssStorageAdaptor.getSessionCounter(this.delegate));
+                int levelMask = 0;
+                for (int lvl = 0; lvl < 16; lvl++) {
+                    if (this.filters.get(lvl) != null) levelMask |= 1<<lvl;
+                }
+                out.writeInt(levelMask);
+                for (int lvl = 0; lvl < 16; lvl++) {
+                    var filter = this.filters.get(lvl);
+                    if (filter == null) continue;
+                    for (long word : filter) {
+                        out.writeLong(word);
+                    }
+                }
+                out.flush();
+                //The checksum itself is written after reading the value so it isnt included
+                long value = crc.getValue();
+                out.writeLong(value);
+            }
+            Files.move(tmp, this.file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            System.err.println("Failed to save section presence index, it will be rebuilt next time");
+            e.printStackTrace();
+        }
+    }
+
+    @Override
+    public void close() {
+        this.running = false;
+        if (this.rebuildThread != null) {
+            try {
+                this.rebuildThread.join();
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+        }
+        //Only a completed filter is worth keeping, a partial one would hide sections
+        if (this.ready) {
+            this.save();
+        }
+        super.close();
+    }
+
+    public static class Config extends DelegateStorageConfig {
+        //Size of the bloom filter per lod level, 2^24 bits is 2mb and keeps false positives low for a few million
+        // sections per level
+        public int bitsPerLevelLog2 = 24;
+
+        @Override
+        public StorageBackend build(ConfigBuildCtx ctx) {
+            var path = Path.of(ctx.ensurePathExists(ctx.substituteString(ctx.resolvePath())));
+            return new PresenceIndexAdaptor(path.resolve("presence.bin"), this.bitsPerLevelLog2, this.delegate.build(ctx));
+        }
+
+        public static String getConfigTypeName() {
+            return "PresenceIndexAdaptor";
+        }
+    }
+}
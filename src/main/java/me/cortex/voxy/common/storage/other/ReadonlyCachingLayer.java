@@ -1,6 +1,8 @@
 package me.cortex.voxy.common.storage.other;
 
 import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+import me.cortex.voxy.common.storage.SectionVisitor;
 import me.cortex.voxy.common.storage.StorageBackend;
 import me.cortex.voxy.common.storage.config.ConfigBuildCtx;
 import me.cortex.voxy.common.storage.config.StorageConfig;
@@ -30,6 +32,11 @@ public class ReadonlyCachingLayer extends StorageBackend {
         return result;
     }
 
+    @Override
+    public boolean mayContainSection(long key) {
+        return this.cache.mayContainSection(key) || this.onMiss.mayContainSection(key);
+    }
+
     @Override
     public void setSectionData(long key, ByteBuffer data) {
         this.cache.setSectionData(key, data);
@@ -40,6 +47,20 @@ public class ReadonlyCachingLayer extends StorageBackend {
         this.cache.deleteSectionData(key);
     }
 
+    @Override
+    public boolean iterateSections(long minKey, long maxKey, boolean withData, SectionVisitor visitor) {
+        //Everything in the cache shadows the backing store, so track what was visited from it and skip those after
+        LongOpenHashSet cached = new LongOpenHashSet();
+        boolean cont = this.cache.iterateSections(minKey, maxKey, withData, (key, data) -> {
+            cached.add(key);
+            return visitor.visit(key, data);
+        });
+        if (!cont) {
+            return false;
+        }
+        return this.onMiss.iterateSections(minKey, maxKey, withData, (key, data) -> cached.contains(key) || visitor.visit(key, data));
+    }
+
     @Override
     public void putIdMapping(int id, ByteBuffer data) {
         this.cache.putIdMapping(id, data);
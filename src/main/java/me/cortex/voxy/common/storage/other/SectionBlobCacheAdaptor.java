@@ -0,0 +1,358 @@
+package me.cortex.voxy.common.storage.other;
+
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.objects.ObjectArrayList;
+import me.cortex.voxy.common.storage.StorageBackend;
+import me.cortex.voxy.common.storage.StorageIOExecutor;
+import me.cortex.voxy.common.storage.config.ConfigBuildCtx;
+import me.cortex.voxy.common.world.ActiveSectionTracker;
+import org.lwjgl.system.MemoryUtil;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+
+//Keeps recently read or written section payloads in native memory with a strict byte budget, evicting with CLOCK
+// when placed above the CompressionStorageAdaptor a cache hit skips both the db and decompression
+public class SectionBlobCacheAdaptor extends DelegatingStorageAdaptor {
+    private static final class Entry {
+        private final long key;
+        private final long ptr;
+        private final int size;
+        private boolean referenced;
+        private int slot;
+
+        private Entry(long key, long ptr, int size) {
+            this.key = key;
+            this.ptr = ptr;
+            this.size = size;
+        }
+    }
+
+    //Tracks the reads and writes in flight for a key, only exists while at least one is
+    //The version changes when a write starts, so a read fill or write is only inserted if no other write to the same
+    // key started while it was in flight, else the cache could end up holding stale data
+    private static final class Pending {
+        private long version;
+        private int readers;
+        private int writers;
+    }
+
+    private static final class Stripe {
+        private final Long2ObjectOpenHashMap<Entry> entries = new Long2ObjectOpenHashMap<>();
+        private final Long2ObjectOpenHashMap<Pending> pending = new Long2ObjectOpenHashMap<>();
+        private final ObjectArrayList<Entry> clock = new ObjectArrayList<>();
+        private int hand;
+        private long bytes;
+        //Source of versions, so a key that stops being pending and starts again never reuses a version
+        private long nextVersion;
+    }
+
+    private final Stripe[] stripes;
+    private final long stripeBudget;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    public SectionBlobCacheAdaptor(StorageBackend delegate, long maxBytes, int stripeBits) {
+        super(delegate);
+        this.stripes = new Stripe[1<<stripeBits];
+        for (int i = 0; i < this.stripes.length; i++) {
+            this.stripes[i] = new Stripe();
+        }
+        this.stripeBudget = maxBytes/this.stripes.length;
+    }
+
+    private Stripe getStripe(long key) {
+        return this.stripes[(int) (ActiveSectionTracker.mixStafford13(key)&(this.stripes.length-1))];
+    }
+
+    //Must hold the stripe lock
+    private static ByteBuffer copyOut(Entry entry) {
+        entry.referenced = true;
+        var copy = MemoryUtil.memAlloc(entry.size);
+        MemoryUtil.memCopy(entry.ptr, MemoryUtil.memAddress(copy), entry.size);
+        return copy;
+    }
+
+    //Must hold the stripe lock
+    private static void remove(Stripe stripe, Entry entry) {
+        stripe.entries.remove(entry.key);
+        var last = stripe.clock.pop();
+        if (last != entry) {
+            stripe.clock.set(entry.slot, last);
+            last.slot = entry.slot;
+        }
+        stripe.bytes -= entry.size;
+        MemoryUtil.nmemFree(entry.ptr);
+    }
+
+    //Must hold the stripe lock
+    private void insert(Stripe stripe, long key, ByteBuffer data) {
+        var old = stripe.entries.get(key);
+        if (old != null) {
+            remove(stripe, old);
+        }
+        int size = data.remaining();
+        if (this.stripeBudget < size) {
+            return;
+        }
+        //CLOCK eviction, give referenced entries a second chance
+        while (this.stripeBudget < stripe.bytes + size) {
+            if (stripe.clock.size() <= stripe.hand) {
+                stripe.hand = 0;
+            }
+            var candidate = stripe.clock.get(stripe.hand);
+            if (candidate.referenced) {
+                candidate.referenced = false;
+                stripe.hand++;
+            } else {
+                remove(stripe, candidate);
+            }
+        }
+        long ptr = MemoryUtil.nmemAlloc(size);
+        MemoryUtil.memCopy(MemoryUtil.memAddress(data), ptr, size);
+        var entry = new Entry(key, ptr, size);
+        entry.slot = stripe.clock.size();
+        stripe.clock.add(entry);
+        stripe.entries.put(key, entry);
+        stripe.bytes += size;
+    }
+
+    //Must hold the stripe lock
+    private static Pending getPending(Stripe stripe, long key) {
+        var pending = stripe.pending.get(key);
+        if (pending == null) {
+            pending = new Pending();
+            pending.version = stripe.nextVersion++;
+            stripe.pending.put(key, pending);
+        }
+        return pending;
+    }
+
+    //Must hold the stripe lock
+    private static void releasePending(Stripe stripe, long key, Pending pending) {
+        if (pending.readers == 0 && pending.writers == 0) {
+            stripe.pending.remove(key);
+        }
+    }
+
+    //Invalidates the key and marks a write as in flight, the version must be read once all the writes of a batch
+    // have started
+    private static void beginWrite(Stripe stripe, long key) {
+        synchronized (stripe) {
+            var old = stripe.entries.get(key);
+            if (old != null) {
+                remove(stripe, old);
+            }
+            var pending = getPending(stripe, key);
+            pending.version = stripe.nextVersion++;
+            pending.writers++;
+        }
+    }
+
+    private static long getVersion(Stripe stripe, long key) {
+        synchronized (stripe) {
+            return stripe.pending.get(key).version;
+        }
+    }
+
+    private void endWrite(Stripe stripe, long key, long version, ByteBuffer data) {
+        synchronized (stripe) {
+            var pending = stripe.pending.get(key);
+            pending.writers--;
+            if (pending.version == version && pending.writers == 0 && data != null) {
+                this.insert(stripe, key, data);
+            } else {
+                //Another write to the key overlapped with this one, dont know which landed last so just drop the entry
+                var old = stripe.entries.get(key);
+                if (old != null) {
+                    remove(stripe, old);
+                }
+            }
+            releasePending(stripe, key, pending);
+        }
+    }
+
+    //Must hold the stripe lock, returns the version the fill must still see to be inserted, a read that starts while a
+    // write is in flight may see either value so it never fills
+    private static long beginRead(Stripe stripe, long key) {
+        var pending = getPending(stripe, key);
+        pending.readers++;
+        return pending.writers == 0 ? pending.version : -1;
+    }
+
+    private void endRead(Stripe stripe, long key, long version, ByteBuffer data) {
+        synchronized (stripe) {
+            var pending = stripe.pending.get(key);
+            pending.readers--;
+            //A write in flight may or may not be visible in what was read, so only fill when there is none
+            if (data != null && pending.version == version && pending.writers == 0) {
+                this.insert(stripe, key, data);
+            }
+            releasePending(stripe, key, pending);
+        }
+    }
+
+    //Read through this adaptor so the prefetched blobs end up in the cache
+    @Override
+    public void prefetch(long[] keys) {
+        StorageIOExecutor.INSTANCE.prefetch(this, keys);
+    }
+
+    @Override
+    public ByteBuffer getSectionData(long key) {
+        var stripe = this.getStripe(key);
+        long version;
+        synchronized (stripe) {
+            var entry = stripe.entries.get(key);
+            if (entry != null) {
+                this.hits.incrementAndGet();
+                return copyOut(entry);
+            }
+            version = beginRead(stripe, key);
+        }
+        this.misses.incrementAndGet();
+        ByteBuffer data = null;
+        try {
+            data = super.getSectionData(key);
+        } finally {
+            this.endRead(stripe, key, version, data);
+        }
+        return data;
+    }
+
+    @Override
+    public ByteBuffer[] getSectionDataBatch(long[] keys) {
+        var out = new ByteBuffer[keys.length];
+        var missing = new IntArrayList();
+        long[] versions = new long[keys.length];
+        for (int i = 0; i < keys.length; i++) {
+            var stripe = this.getStripe(keys[i]);
+            synchronized (stripe) {
+                var entry = stripe.entries.get(keys[i]);
+                if (entry != null) {
+                    out[i] = copyOut(entry);
+                } else {
+                    versions[i] = beginRead(stripe, keys[i]);
+                    missing.add(i);
+                }
+            }
+        }
+        this.hits.addAndGet(keys.length - missing.size());
+        this.misses.addAndGet(missing.size());
+        if (missing.isEmpty()) {
+            return out;
+        }
+        long[] missingKeys = new long[missing.size()];
+        for (int i = 0; i < missingKeys.length; i++) {
+            missingKeys[i] = keys[missing.getInt(i)];
+        }
+        ByteBuffer[] fetched = null;
+        try {
+            fetched = this.delegate.getSectionDataBatch(missingKeys);
+        } finally {
+            for (int i = 0; i < missingKeys.length; i++) {
+                int idx = missing.getInt(i);
+                var data = fetched == null ? null : fetched[i];
+                out[idx] = data;
+                this.endRead(this.getStripe(keys[idx]), keys[idx], versions[idx], data);
+            }
+        }
+        return out;
+    }
+
+    @Override
+    public void setSectionData(long key, ByteBuffer data) {
+        var stripe = this.getStripe(key);
+        beginWrite(stripe, key);
+        long version = getVersion(stripe, key);
+        try {
+            super.setSectionData(key, data);
+        } finally {
+            this.endWrite(stripe, key, version, data);
+        }
+    }
+
+    @Override
+    public void setSectionDataBatch(long[] keys, ByteBuffer[] data) {
+        if (keys.length != data.length) {
+            throw new IllegalArgumentException("Key count does not match data count");
+        }
+        for (int i = 0; i < keys.length; i++) {
+            beginWrite(this.getStripe(keys[i]), keys[i]);
+        }
+        //Versions are only taken once every write in the batch started, so a key written twice in the batch only
+        // keeps the last write
+        long[] versions = new long[keys.length];
+        for (int i = 0; i < keys.length; i++) {
+            versions[i] = getVersion(this.getStripe(keys[i]), keys[i]);
+        }
+        try {
+            this.delegate.setSectionDataBatch(keys, data);
+        } finally {
+            for (int i = 0; i < keys.length; i++) {
+                this.endWrite(this.getStripe(keys[i]), keys[i], versions[i], data[i]);
+            }
+        }
+    }
+
+    @Override
+    public void deleteSectionData(long key) {
+        var stripe = this.getStripe(key);
+        beginWrite(stripe, key);
+        long version = getVersion(stripe, key);
+        try {
+            super.deleteSectionData(key);
+        } finally {
+            this.endWrite(stripe, key, version, null);
+        }
+    }
+
+    public long getHitCount() {
+        return this.hits.get();
+    }
+
+    public long getMissCount() {
+        return this.misses.get();
+    }
+
+    public long getCachedBytes() {
+        long total = 0;
+        for (var stripe : this.stripes) {
+            synchronized (stripe) {
+                total += stripe.bytes;
+            }
+        }
+        return total;
+    }
+
+    @Override
+    public void close() {
+        for (var stripe : this.stripes) {
+            synchronized (stripe) {
+                for (var entry : stripe.clock) {
+                    MemoryUtil.nmemFree(entry.ptr);
+                }
+                stripe.clock.clear();
+                stripe.entries.clear();
+                stripe.bytes = 0;
+            }
+        }
+        super.close();
+    }
+
+    public static class Config extends DelegateStorageConfig {
+        public long maxBytes = 128L<<20;
+        public int stripeBits = 4;
+
+        @Override
+        public StorageBackend build(ConfigBuildCtx ctx) {
+            return new SectionBlobCacheAdaptor(this.delegate.build(ctx), this.maxBytes, this.stripeBits);
+        }
+
+        public static String getConfigTypeName() {
+            return "SectionBlobCache";
+        }
+    }
+}
@@ -0,0 +1,239 @@
+package me.cortex.voxy.common.storage.other;
+
+import org.lwjgl.system.MemoryUtil;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.zip.CRC32C;
+
+//Append only log of section writes so writes that are only held in memory survive a crash, each record is
+// key(8) length(4, -1 for a delete) crc32c(4) followed by the payload, a torn record at the tail of a file (crash mid
+// write) is just ignored
+//Files are numbered by generation, a rotate seals the current file and the sealed files get deleted once everything in
+// them has been made durable somewhere else
+class SectionJournal {
+    interface ReplayConsumer {
+        //data is null for a delete, otherwise the consumer owns the buffer
+        void accept(long key, ByteBuffer data);
+    }
+
+    private static final String PREFIX = "sections-";
+    private static final String SUFFIX = ".journal";
+    private static final int HEADER_SIZE = 16;
+
+    private final Path dir;
+    private final List<Path> sealed = new ArrayList<>();
+    private final ByteBuffer header = ByteBuffer.allocateDirect(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+    private final CRC32C crc = new CRC32C();
+    private long generation;
+    //Number of the next appended record, records are numbered in the order they are in the journal
+    private long sequence;
+    private FileChannel current;
+    private boolean unsynced;
+    private boolean currentEmpty;
+
+    SectionJournal(Path dir) {
+        this.dir = dir;
+        try {
+            Files.createDirectories(dir);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static long getGeneration(Path file) {
+        var name = file.getFileName().toString();
+        return Long.parseLong(name.substring(PREFIX.length(), name.length() - SUFFIX.length()));
+    }
+
+    //Replays all the existing journals oldest first, they are kept on disk until they get released by a rotate, then
+    // opens a fresh journal for new writes
+    synchronized int replay(ReplayConsumer consumer) {
+        List<Path> files;
+        try (var stream = Files.list(this.dir)) {
+            files = new ArrayList<>(stream.filter(file -> {
+                var name = file.getFileName().toString();
+                return name.startsWith(PREFIX) && name.endsWith(SUFFIX);
+            }).toList());
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        files.sort(Comparator.comparingLong(SectionJournal::getGeneration));
+
+        int records = 0;
+        for (var file : files) {
+            int fileRecords = this.replayFile(file, consumer);
+            records += fileRecords;
+            if (fileRecords == 0) {
+                //Nothing to keep it around for
+                this.release(List.of(file));
+            } else {
+                this.sealed.add(file);
+            }
+            this.generation = Math.max(this.generation, getGeneration(file) + 1);
+        }
+        this.openNext();
+        return records;
+    }
+
+    private int replayFile(Path file, ReplayConsumer consumer) {
+        int records = 0;
+        try (var channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            while (true) {
+                this.header.clear();
+                if (!readFully(channel, this.header)) {
+                    break;
+                }
+                long key = this.header.getLong(0);
+                int length = this.header.getInt(8);
+                int checksum = this.header.getInt(12);
+                if (length < -1 || channel.size() - channel.position() < Math.max(length, 0)) {
+                    System.err.println("Section journal " + file + " has a torn record at the tail, ignoring it");
+                    break;
+                }
+                ByteBuffer data = null;
+                if (length != -1) {
+                    data = MemoryUtil.memAlloc(length);
+                    if (!readFully(channel, data)) {
+                        MemoryUtil.memFree(data);
+                        break;
+                    }
+                    data.rewind();
+                }
+                if (this.checksum(key, length, data) != checksum) {
+                    if (data != null) {
+                        MemoryUtil.memFree(data);
+                    }
+                    System.err.println("Section journal " + file + " has a corrupt record, ignoring the rest of the file");
+                    break;
+                }
+                consumer.accept(key, data);
+                records++;
+            }
+        } catch (IOException e) {
+            System.err.println("Failed to replay section journal " + file);
+            e.printStackTrace();
+        }
+        return records;
+    }
+
+    private static boolean readFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int checksum(long key, int length, ByteBuffer data) {
+        this.crc.reset();
+        this.header.putLong(0, key);
+        this.header.putInt(8, length);
+        this.crc.update(this.header.slice(0, 12));
+        if (data != null) {
+            this.crc.update(data.slice());
+        }
+        return (int) this.crc.getValue();
+    }
+
+    private void openNext() {
+        try {
+            this.current = FileChannel.open(this.dir.resolve(PREFIX + (this.generation++) + SUFFIX), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+            this.currentEmpty = true;
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    //Appends a write, data is null for a delete, its only durable after the next sync, returns the number of the record
+    // so callers racing on the same key can tell which one the replay would keep
+    synchronized long append(long key, ByteBuffer data) {
+        int length = data == null ? -1 : data.remaining();
+        int checksum = this.checksum(key, length, data);
+        this.header.clear();
+        this.header.putLong(0, key);
+        this.header.putInt(8, length);
+        this.header.putInt(12, checksum);
+        try {
+            while (this.header.hasRemaining()) {
+                this.current.write(this.header);
+            }
+            if (data != null) {
+                var payload = data.slice();
+                while (payload.hasRemaining()) {
+                    this.current.write(payload);
+                }
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to append to the section journal", e);
+        }
+        this.unsynced = true;
+        this.currentEmpty = false;
+        return this.sequence++;
+    }
+
+    synchronized void sync() {
+        if (!this.unsynced) {
+            return;
+        }
+        try {
+            this.current.force(false);
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to sync the section journal", e);
+        }
+        this.unsynced = false;
+    }
+
+    //Seals the current journal and starts a new one, returns all the sealed journals, they must either be released
+    // once their writes are durable elsewhere or restored if that failed
+    synchronized List<Path> rotate() {
+        this.sync();
+        try {
+            this.current.close();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        this.sealed.add(this.dir.resolve(PREFIX + (this.generation - 1) + SUFFIX));
+        this.openNext();
+        var files = new ArrayList<>(this.sealed);
+        this.sealed.clear();
+        return files;
+    }
+
+    synchronized void restore(List<Path> files) {
+        this.sealed.addAll(0, files);
+    }
+
+    void release(List<Path> files) {
+        for (var file : files) {
+            try {
+                Files.deleteIfExists(file);
+            } catch (IOException e) {
+                System.err.println("Failed to delete section journal " + file);
+                e.printStackTrace();
+            }
+        }
+    }
+
+    synchronized void close() {
+        try {
+            this.sync();
+            this.current.close();
+            //Dont leave empty journals around to be replayed
+            if (this.currentEmpty) {
+                Files.deleteIfExists(this.dir.resolve(PREFIX + (this.generation - 1) + SUFFIX));
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
@@ -1,6 +1,9 @@
 package me.cortex.voxy.common.storage.other;
 
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+import me.cortex.voxy.common.storage.SectionVisitor;
 import me.cortex.voxy.common.storage.StorageBackend;
+import me.cortex.voxy.common.storage.StorageIOExecutor;
 import me.cortex.voxy.common.storage.config.ConfigBuildCtx;
 import me.cortex.voxy.common.storage.config.StorageConfig;
 import me.cortex.voxy.common.world.WorldEngine;
@@ -46,6 +49,18 @@ public class TranslocatingStorageAdaptor extends DelegatingStorageAdaptor {
         this.transforms = transforms;
     }
 
+    @Override
+    public boolean mayContainSection(long key) {
+        //Depends on the transforms, so cant say
+        return true;
+    }
+
+    //The keys need to go through the transforms, so just read through this adaptor
+    @Override
+    public void prefetch(long[] keys) {
+        StorageIOExecutor.INSTANCE.prefetch(this, keys);
+    }
+
     @Override
     public ByteBuffer getSectionData(long key) {
         for (var transform : this.transforms) {
@@ -72,6 +87,51 @@ public class TranslocatingStorageAdaptor extends DelegatingStorageAdaptor {
         return super.getSectionData(key);
     }
 
+    //Returns the transform whose box contains the key or null
+    private BoxTransform getContainingTransform(long key) {
+        for (var transform : this.transforms) {
+            if (transform.transformIfInBox(key) != -1) {
+                return transform;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public boolean iterateSections(long minKey, long maxKey, boolean withData, SectionVisitor visitor) {
+        //A stored section can show up both at its own position and at any position translocated onto it, so the
+        // mapping isnt monotonic, scan everything and map each stored key back to the positions it is visible at
+        //Positions inside a box can be reached from both so those get deduplicated
+        LongOpenHashSet seenInBox = new LongOpenHashSet();
+        return this.delegate.iterateAllSections(withData, (stored, data) -> {
+            int lvl = WorldEngine.getLevel(stored);
+            long direct = WorldEngine.oldToNewId(stored);
+            var containing = this.getContainingTransform(direct);
+            if (containing == null) {
+                if (inRange(direct, minKey, maxKey) && !visitor.visit(direct, data)) {
+                    return false;
+                }
+            } else if (containing.mode != Mode.BOX_ONLY && containing.mode != null) {
+                if (inRange(direct, minKey, maxKey) && seenInBox.add(direct) && !visitor.visit(direct, data)) {
+                    return false;
+                }
+            }
+            for (var transform : this.transforms) {
+                long source = WorldEngine.getWorldSectionId(lvl,
+                        WorldEngine.getXOld(stored) - (transform.dx>>lvl),
+                        WorldEngine.getYOld(stored) - (transform.dy>>lvl),
+                        WorldEngine.getZOld(stored) - (transform.dz>>lvl));
+                if (transform.transformIfInBox(source) == -1 || this.getContainingTransform(source) != transform) {
+                    continue;
+                }
+                if (inRange(source, minKey, maxKey) && seenInBox.add(source) && !visitor.visit(source, data)) {
+                    return false;
+                }
+            }
+            return true;
+        });
+    }
+
     @Override
     public void setSectionData(long key, ByteBuffer data) {
         //Dont save data if its a transformed position
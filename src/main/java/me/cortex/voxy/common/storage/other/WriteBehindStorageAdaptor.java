@@ -0,0 +1,434 @@
+package me.cortex.voxy.common.storage.other;
+
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.longs.Long2LongOpenHashMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import me.cortex.voxy.common.storage.SectionVisitor;
+import me.cortex.voxy.common.storage.StorageBackend;
+import me.cortex.voxy.common.storage.config.ConfigBuildCtx;
+import org.lwjgl.system.MemoryUtil;
+
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+//Holds section writes in native memory and only writes them to the delegate after a delay or when the pending byte
+// budget is exceeded, repeated writes to the same section in that window are merged into a single write and
+// everything is written out in large key sorted batches
+//With the journal enabled every write is also appended to an on disk log before its acknowledged, so the held writes
+// survive a crash (they get replayed on the next start) and closing doesnt need to wait for them to be written out
+public class WriteBehindStorageAdaptor extends DelegatingStorageAdaptor {
+    //Marker for a pending delete, never freed or read from
+    private static final ByteBuffer DELETED = ByteBuffer.allocateDirect(0);
+    private static final int MAX_FLUSH_BATCH = 512;
+
+    private final long flushDelay;
+    private final long maxPendingBytes;
+
+    //Null if journaling is disabled
+    private final SectionJournal journal;
+    //0 means the journal is synced before every write returns
+    private final long journalSyncInterval;
+    private final boolean drainOnClose;
+
+    //All guarded by this.lock
+    private final Object lock = new Object();
+    private Long2ObjectOpenHashMap<ByteBuffer> pending = new Long2ObjectOpenHashMap<>();
+    private Long2ObjectOpenHashMap<ByteBuffer> flushing = new Long2ObjectOpenHashMap<>();
+    //Journal record number of each pending write, the journal is appended to outside of this.lock so 2 writes to the
+    // same key can reach pending in a different order than they are in the journal, the later record has to win
+    private Long2LongOpenHashMap pendingSequence = new Long2LongOpenHashMap();
+    private long pendingBytes;
+
+    //Writes hold the read lock from their journal append until they are in pending and rotating holds the write lock,
+    // else a write could land in a sealed journal (that gets deleted after the flush) while missing from the flush
+    private final ReentrantReadWriteLock rotateLock = new ReentrantReadWriteLock();
+
+    //Only one flush may run at a time else an older write could overtake a newer one
+    private final Object flushLock = new Object();
+    private volatile boolean running = true;
+    private final Thread flushThread;
+
+    public WriteBehindStorageAdaptor(StorageBackend delegate, long flushDelay, long maxPendingBytes) {
+        this(delegate, flushDelay, maxPendingBytes, null, 0, true);
+    }
+
+    public WriteBehindStorageAdaptor(StorageBackend delegate, long flushDelay, long maxPendingBytes, Path journalDir, long journalSyncInterval, boolean drainOnClose) {
+        super(delegate);
+        this.flushDelay = flushDelay;
+        this.maxPendingBytes = maxPendingBytes;
+        this.journalSyncInterval = journalSyncInterval;
+        this.drainOnClose = drainOnClose || journalDir == null;
+        if (journalDir != null) {
+            this.pendingSequence.defaultReturnValue(-1);
+            this.journal = new SectionJournal(journalDir);
+            //Replayed writes go straight into pending, the flusher then writes them out like any other write
+            int replayed = this.journal.replay((key, data) -> {
+                var old = this.pending.put(key, data == null ? DELETED : data);
+                if (old != null && old != DELETED) {
+                    this.pendingBytes -= old.remaining();
+                    MemoryUtil.memFree(old);
+                }
+                if (data != null) {
+                    this.pendingBytes += data.remaining();
+                }
+            });
+            if (replayed != 0) {
+                System.out.println("Replayed " + replayed + " section writes from the storage journal");
+            }
+        } else {
+            this.journal = null;
+        }
+        this.flushThread = new Thread(this::flushWorker);
+        this.flushThread.setName("Storage write behind flusher");
+        this.flushThread.setDaemon(true);
+        this.flushThread.start();
+    }
+
+    private void flushWorker() {
+        long lastFlush = System.currentTimeMillis();
+        //If the journal is synced periodically the flusher wakes up for that aswell
+        long waitTime = (this.journal != null && this.journalSyncInterval > 0) ? Math.min(this.flushDelay, this.journalSyncInterval) : this.flushDelay;
+        while (this.running) {
+            synchronized (this.lock) {
+                if (this.pendingBytes < this.maxPendingBytes) {
+                    try {
+                        this.lock.wait(waitTime);
+                    } catch (InterruptedException e) {
+                        break;
+                    }
+                }
+            }
+            if (!this.running) break;
+            try {
+                if (this.journal != null) {
+                    this.journal.sync();
+                }
+                boolean full;
+                synchronized (this.lock) {
+                    full = this.maxPendingBytes <= this.pendingBytes;
+                }
+                if (!full && System.currentTimeMillis() - lastFlush < this.flushDelay) {
+                    continue;
+                }
+                lastFlush = System.currentTimeMillis();
+                this.flushPending();
+            } catch (Exception e) {
+                System.err.println("Write behind flush failed, will retry");
+                e.printStackTrace();
+            }
+        }
+    }
+
+    //Returns a copy of the pending data, DELETED if its pending deletion or null if there is no pending data
+    private ByteBuffer getPending(long key) {
+        var data = this.pending.get(key);
+        if (data == null) {
+            data = this.flushing.get(key);
+        }
+        if (data == null || data == DELETED) {
+            return data;
+        }
+        var copy = MemoryUtil.memAlloc(data.remaining());
+        MemoryUtil.memCopy(data, copy);
+        return copy;
+    }
+
+    private void putPending(long key, ByteBuffer data) {
+        synchronized (this.lock) {
+            //Apply back pressure if the flusher isnt keeping up
+            while (this.maxPendingBytes <= this.pendingBytes && this.running) {
+                this.lock.notifyAll();
+                try {
+                    this.lock.wait();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        }
+        this.rotateLock.readLock().lock();
+        try {
+            //The journal does its own synchronization, so the file write doesnt block readers or other writers
+            long sequence = -1;
+            if (this.journal != null) {
+                sequence = this.journal.append(key, data == DELETED ? null : data);
+            }
+            synchronized (this.lock) {
+                if (this.journal != null) {
+                    if (sequence < this.pendingSequence.get(key)) {
+                        //A newer write to the key already got here first
+                        if (data != DELETED) {
+                            MemoryUtil.memFree(data);
+                        }
+                        return;
+                    }
+                    this.pendingSequence.put(key, sequence);
+                }
+                var old = this.pending.put(key, data);
+                if (old != null && old != DELETED) {
+                    this.pendingBytes -= old.remaining();
+                    MemoryUtil.memFree(old);
+                }
+                this.pendingBytes += data.remaining();
+                if (this.maxPendingBytes <= this.pendingBytes) {
+                    this.lock.notifyAll();
+                }
+            }
+        } finally {
+            this.rotateLock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public ByteBuffer getSectionData(long key) {
+        synchronized (this.lock) {
+            var data = this.getPending(key);
+            if (data != null) {
+                return data == DELETED ? null : data;
+            }
+        }
+        return super.getSectionData(key);
+    }
+
+    @Override
+    public boolean mayContainSection(long key) {
+        synchronized (this.lock) {
+            var data = this.pending.get(key);
+            if (data == null) {
+                data = this.flushing.get(key);
+            }
+            if (data != null) {
+                return data != DELETED;
+            }
+        }
+        return super.mayContainSection(key);
+    }
+
+    @Override
+    public ByteBuffer[] getSectionDataBatch(long[] keys) {
+        var out = new ByteBuffer[keys.length];
+        var missing = new IntArrayList();
+        synchronized (this.lock) {
+            for (int i = 0; i < keys.length; i++) {
+                var data = this.getPending(keys[i]);
+                if (data == null) {
+                    missing.add(i);
+                } else if (data != DELETED) {
+                    out[i] = data;
+                }
+            }
+        }
+        if (missing.isEmpty()) {
+            return out;
+        }
+        long[] missingKeys = new long[missing.size()];
+        for (int i = 0; i < missingKeys.length; i++) {
+            missingKeys[i] = keys[missing.getInt(i)];
+        }
+        var fetched = this.delegate.getSectionDataBatch(missingKeys);
+        for (int i = 0; i < fetched.length; i++) {
+            out[missing.getInt(i)] = fetched[i];
+        }
+        return out;
+    }
+
+    @Override
+    public boolean iterateSections(long minKey, long maxKey, boolean withData, SectionVisitor visitor) {
+        //Write out everything pending so the delegate has the latest state of every section
+        this.flushPending();
+        return super.iterateSections(minKey, maxKey, withData, visitor);
+    }
+
+    //Makes the journaled writes durable before returning if the journal is synced on every write
+    private void syncJournalIfImmediate() {
+        if (this.journal != null && this.journalSyncInterval <= 0) {
+            this.journal.sync();
+        }
+    }
+
+    private void putCopy(long key, ByteBuffer data) {
+        var copy = MemoryUtil.memAlloc(data.remaining());
+        MemoryUtil.memCopy(data, copy);
+        this.putPending(key, copy);
+    }
+
+    @Override
+    public void setSectionData(long key, ByteBuffer data) {
+        this.putCopy(key, data);
+        this.syncJournalIfImmediate();
+    }
+
+    @Override
+    public void setSectionDataBatch(long[] keys, ByteBuffer[] data) {
+        if (keys.length != data.length) {
+            throw new IllegalArgumentException("Key count does not match data count");
+        }
+        for (int i = 0; i < keys.length; i++) {
+            this.putCopy(keys[i], data[i]);
+        }
+        //Single sync for the whole batch
+        this.syncJournalIfImmediate();
+    }
+
+    @Override
+    public void deleteSectionData(long key) {
+        this.putPending(key, DELETED);
+        this.syncJournalIfImmediate();
+    }
+
+    //Writes everything that is pending to the delegate
+    private void flushPending() {
+        synchronized (this.flushLock) {
+            Long2ObjectOpenHashMap<ByteBuffer> toFlush;
+            List<Path> journals = null;
+            this.rotateLock.writeLock().lock();
+            try {
+                synchronized (this.lock) {
+                    if (this.pending.isEmpty()) {
+                        return;
+                    }
+                    //Everything in the sealed journals is either in toFlush or superseded by a newer write
+                    if (this.journal != null) {
+                        journals = this.journal.rotate();
+                    }
+                    toFlush = this.pending;
+                    this.flushing = toFlush;
+                    this.pending = new Long2ObjectOpenHashMap<>();
+                    //Every write after the rotate has a higher record number than anything being flushed
+                    this.pendingSequence.clear();
+                    this.pendingBytes = 0;
+                    this.lock.notifyAll();
+                }
+            } finally {
+                this.rotateLock.writeLock().unlock();
+            }
+
+            //Sorted so that the delegate gets nicely ordered inserts (keys are positive so signed order is fine)
+            var keys = new LongArrayList(toFlush.keySet());
+            keys.unstableSort(null);
+            boolean success = false;
+            try {
+                long[] batchKeys = new long[MAX_FLUSH_BATCH];
+                ByteBuffer[] batchData = new ByteBuffer[MAX_FLUSH_BATCH];
+                int count = 0;
+                for (int i = 0; i < keys.size(); i++) {
+                    long key = keys.getLong(i);
+                    var data = toFlush.get(key);
+                    if (data == DELETED) {
+                        this.delegate.deleteSectionData(key);
+                        continue;
+                    }
+                    batchKeys[count] = key;
+                    batchData[count++] = data;
+                    if (count == MAX_FLUSH_BATCH) {
+                        this.delegate.setSectionDataBatch(batchKeys, batchData);
+                        count = 0;
+                    }
+                }
+                if (count != 0) {
+                    long[] tailKeys = new long[count];
+                    ByteBuffer[] tailData = new ByteBuffer[count];
+                    System.arraycopy(batchKeys, 0, tailKeys, 0, count);
+                    System.arraycopy(batchData, 0, tailData, 0, count);
+                    this.delegate.setSectionDataBatch(tailKeys, tailData);
+                }
+                if (journals != null) {
+                    //The journals can only go once the delegate has the writes durably
+                    this.delegate.flush();
+                }
+                success = true;
+            } finally {
+                synchronized (this.lock) {
+                    for (var entry : toFlush.long2ObjectEntrySet()) {
+                        var data = entry.getValue();
+                        //On failure requeue anything that hasnt been superseded by a newer write
+                        if ((!success) && !this.pending.containsKey(entry.getLongKey())) {
+                            this.pending.put(entry.getLongKey(), data);
+                            if (data != DELETED) {
+                                this.pendingBytes += data.remaining();
+                            }
+                        } else if (data != DELETED) {
+                            MemoryUtil.memFree(data);
+                        }
+                    }
+                    this.flushing = new Long2ObjectOpenHashMap<>();
+                }
+                if (journals != null) {
+                    if (success) {
+                        this.journal.release(journals);
+                    } else {
+                        this.journal.restore(journals);
+                    }
+                }
+            }
+        }
+    }
+
+    @Override
+    public void flush() {
+        if (this.journal != null) {
+            //Everything is already durable in the journal, no need to push it through to the delegate
+            this.journal.sync();
+            return;
+        }
+        this.flushPending();
+        super.flush();
+    }
+
+    @Override
+    public void close() {
+        this.running = false;
+        synchronized (this.lock) {
+            this.lock.notifyAll();
+        }
+        try {
+            this.flushThread.join();
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+        if (this.drainOnClose) {
+            this.flushPending();
+        } else {
+            //The pending writes are in the journal and get replayed on the next start
+            synchronized (this.lock) {
+                for (var data : this.pending.values()) {
+                    if (data != DELETED) {
+                        MemoryUtil.memFree(data);
+                    }
+                }
+                this.pending.clear();
+                this.pendingBytes = 0;
+            }
+        }
+        if (this.journal != null) {
+            this.journal.close();
+        }
+        super.close();
+    }
+
+    public static class Config extends DelegateStorageConfig {
+        public long flushDelayMs = 5000;
+        public long maxPendingBytes = 256L<<20;
+        //Journal the pending writes to disk so they arent lost on a crash
+        public boolean journal = false;
+        //How often the journal is synced to disk, 0 syncs before every write returns
+        public long journalSyncIntervalMs = 0;
+        //With the journal enabled closing can skip writing out the pending data since its replayed on the next start
+        public boolean drainOnClose = false;
+
+        @Override
+        public StorageBackend build(ConfigBuildCtx ctx) {
+            Path journalDir = null;
+            if (this.journal) {
+                journalDir = Path.of(ctx.ensurePathExists(ctx.substituteString(ctx.resolvePath()))).resolve("journal");
+            }
+            return new WriteBehindStorageAdaptor(this.delegate.build(ctx), this.flushDelayMs, this.maxPendingBytes, journalDir, this.journalSyncIntervalMs, this.drainOnClose);
+        }
+
+        public static String getConfigTypeName() {
+            return "WriteBehindAdaptor";
+        }
+    }
+}
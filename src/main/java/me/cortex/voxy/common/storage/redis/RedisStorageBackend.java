@@ -1,14 +1,18 @@
 package me.cortex.voxy.common.storage.redis;
 
 import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap;
+import me.cortex.voxy.common.storage.SectionVisitor;
 import me.cortex.voxy.common.storage.StorageBackend;
 import me.cortex.voxy.common.storage.config.ConfigBuildCtx;
 import me.cortex.voxy.common.storage.config.StorageConfig;
 import org.lwjgl.system.MemoryUtil;
 import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.params.ScanParams;
+import redis.clients.jedis.resps.ScanResult;
 
 import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
+import java.util.Map;
 
 public class RedisStorageBackend extends StorageBackend {
     private final JedisPool pool;
@@ -73,6 +77,45 @@ public class RedisStorageBackend extends StorageBackend {
         }
     }
 
+    @Override
+    public boolean iterateSections(long minKey, long maxKey, boolean withData, SectionVisitor visitor) {
+        //Hashes arent ordered so this is a full HSCAN filtered to the range (HSCAN can return an entry more than once if
+        // the hash is resized during the scan)
+        var params = new ScanParams().count(256);
+        byte[] cursor = ScanParams.SCAN_POINTER_START_BINARY;
+        ScanResult<Map.Entry<byte[], byte[]>> result;
+        do {
+            try (var jedis = this.pool.getResource()) {
+                if (this.user != null) {
+                    jedis.auth(this.user, this.password);
+                }
+                result = jedis.hscan(WORLD, cursor, params);
+            }
+            for (var entry : result.getResult()) {
+                long key = bytesToLong(entry.getKey());
+                if (!inRange(key, minKey, maxKey)) {
+                    continue;
+                }
+                ByteBuffer data = null;
+                if (withData) {
+                    data = MemoryUtil.memAlloc(entry.getValue().length);
+                    data.put(entry.getValue()).rewind();
+                }
+                try {
+                    if (!visitor.visit(key, data)) {
+                        return false;
+                    }
+                } finally {
+                    if (data != null) {
+                        MemoryUtil.memFree(data);
+                    }
+                }
+            }
+            cursor = result.getCursorAsBytes();
+        } while (!result.isCompleteIteration());
+        return true;
+    }
+
     @Override
     public void putIdMapping(int id, ByteBuffer data) {
         try (var jedis = this.pool.getResource()) {
@@ -1,29 +1,45 @@
 package me.cortex.voxy.common.storage.rocksdb;
 
 import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap;
+import me.cortex.voxy.common.storage.SectionVisitor;
 import me.cortex.voxy.common.storage.StorageBackend;
 import me.cortex.voxy.common.storage.config.ConfigBuildCtx;
 import me.cortex.voxy.common.storage.config.StorageConfig;
+import me.cortex.voxy.common.util.BufferPool;
+import org.lwjgl.system.MemoryStack;
 import org.lwjgl.system.MemoryUtil;
 import org.rocksdb.*;
 
 import java.io.File;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.nio.file.Files;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 
 public class RocksDBStorageBackend extends StorageBackend {
+    //Initial read buffer size, most compressed sections fit in this, the rest get read again with the exact size
+    private static final int INITIAL_READ_SIZE = 16*1024;
+
     private final RocksDB db;
     private final ColumnFamilyHandle worldSections;
     private final ColumnFamilyHandle idMappings;
+    private final ReadOptions readOptions;
+    //Iteration needs a total order seek since the prefix extractor would otherwise limit iterators to a single prefix
+    private final ReadOptions iterateOptions;
+    private final WriteOptions writeOptions;
+    private final boolean walDisabled;
 
     //NOTE: closes in order
     private final List<AbstractImmutableNativeReference> closeList = new ArrayList<>();
 
     public RocksDBStorageBackend(String path) {
+        this(path, new Config());
+    }
+
+    public RocksDBStorageBackend(String path, Config config) {
         var lockPath = new File(path).toPath().resolve("LOCK");
         if (Files.exists(lockPath)) {
             System.err.println("WARNING, deleting rocksdb LOCK file");
@@ -45,17 +61,53 @@ public class RocksDBStorageBackend extends StorageBackend {
             }
         }
 
-        final ColumnFamilyOptions cfOpts = new ColumnFamilyOptions().optimizeUniversalStyleCompaction();
+        //The cache and filter classes dont load the native library themselves
+        RocksDB.loadLibrary();
+
+        //Shared between all the column families so the cache budget is for the whole database
+        final Cache blockCache = new LRUCache(Math.max(config.blockCacheMb, 1) * 1024L * 1024L);
+
+        final BlockBasedTableConfig sectionTableConfig = new BlockBasedTableConfig()
+                .setBlockCache(blockCache)
+                .setCacheIndexAndFilterBlocks(true)
+                .setPinL0FilterAndIndexBlocksInCache(true);
+        Filter bloomFilter = null;
+        if (config.bloomBitsPerKey > 0) {
+            //Section loads are mostly point lookups and a lot of them miss (never generated sections), so a bloom
+            // filter saves going to disk for those
+            bloomFilter = new BloomFilter(config.bloomBitsPerKey, false);
+            sectionTableConfig.setFilterPolicy(bloomFilter);
+        }
+
+        final ColumnFamilyOptions sectionOpts = applyCompactionStyle(new ColumnFamilyOptions(), config.compactionStyle)
+                .setTableFormatConfig(sectionTableConfig);
+        if (config.levelPrefix) {
+            //The first key byte holds the lod level (and top bits of y), so prefix blooms get built per level
+            sectionOpts.useFixedLengthPrefixExtractor(1);
+        }
+
+        final ColumnFamilyOptions cfOpts = applyCompactionStyle(new ColumnFamilyOptions(), config.compactionStyle)
+                .setTableFormatConfig(new BlockBasedTableConfig().setBlockCache(blockCache));
 
         final List<ColumnFamilyDescriptor> cfDescriptors = Arrays.asList(
             new ColumnFamilyDescriptor(RocksDB.DEFAULT_COLUMN_FAMILY, cfOpts),
-            new ColumnFamilyDescriptor("world_sections".getBytes(), cfOpts),
+            new ColumnFamilyDescriptor("world_sections".getBytes(), sectionOpts),
             new ColumnFamilyDescriptor("id_mappings".getBytes(), cfOpts)
         );
 
         final DBOptions options = new DBOptions()
                 .setCreateIfMissing(true)
                 .setCreateMissingColumnFamilies(true);
+        RateLimiter rateLimiter = null;
+        if (config.rateLimitMbPerSec > 0) {
+            rateLimiter = new RateLimiter(config.rateLimitMbPerSec * 1024L * 1024L);
+            options.setRateLimiter(rateLimiter);
+        }
+
+        this.walDisabled = config.disableWAL;
+        this.readOptions = new ReadOptions();
+        this.iterateOptions = new ReadOptions().setTotalOrderSeek(true);
+        this.writeOptions = new WriteOptions().setDisableWAL(this.walDisabled);
 
         List<ColumnFamilyHandle> handles = new ArrayList<>();
 
@@ -66,8 +118,19 @@ public class RocksDBStorageBackend extends StorageBackend {
 
             this.closeList.addAll(handles);
             this.closeList.add(this.db);
+            this.closeList.add(this.readOptions);
+            this.closeList.add(this.iterateOptions);
+            this.closeList.add(this.writeOptions);
             this.closeList.add(options);
+            this.closeList.add(sectionOpts);
             this.closeList.add(cfOpts);
+            if (rateLimiter != null) {
+                this.closeList.add(rateLimiter);
+            }
+            if (bloomFilter != null) {
+                this.closeList.add(bloomFilter);
+            }
+            this.closeList.add(blockCache);
 
             this.worldSections = handles.get(1);
             this.idMappings = handles.get(2);
@@ -76,18 +139,42 @@ public class RocksDBStorageBackend extends StorageBackend {
         }
     }
 
-    @Override
-    public ByteBuffer getSectionData(long key) {
-        try {
-            var result = this.db.get(this.worldSections, longToBytes(key));
-            if (result == null) {
+    private static ColumnFamilyOptions applyCompactionStyle(ColumnFamilyOptions options, String style) {
+        return switch (style) {
+            case "universal" -> options.optimizeUniversalStyleCompaction();
+            case "level" -> options.optimizeLevelStyleCompaction();
+            default -> throw new IllegalArgumentException("Unknown rocksdb compaction style: " + style);
+        };
+    }
+
+    //Key in big endian so the byte order matches the key order
+    private static ByteBuffer keyBuffer(MemoryStack stack, long key) {
+        return stack.malloc(Long.BYTES).order(ByteOrder.BIG_ENDIAN).putLong(0, key);
+    }
+
+    //Reads the section straight into a native buffer, if the initial buffer was too small the read is redone
+    // with the exact size
+    private ByteBuffer readSection(ByteBuffer keyBuff, int sizeHint) throws RocksDBException {
+        var buffer = BufferPool.acquire(sizeHint);
+        while (true) {
+            int size = this.db.get(this.worldSections, this.readOptions, keyBuff.duplicate(), buffer);
+            if (size == RocksDB.NOT_FOUND) {
+                BufferPool.release(buffer);
                 return null;
             }
-            //Need to copy to native memory
-            var buffer = MemoryUtil.memAlloc(result.length);
-            buffer.put(result);
-            buffer.rewind();
-            return buffer;
+            if (size <= buffer.capacity()) {
+                buffer.position(0).limit(size);
+                return buffer;
+            }
+            BufferPool.release(buffer);
+            buffer = BufferPool.acquire(size);
+        }
+    }
+
+    @Override
+    public ByteBuffer getSectionData(long key) {
+        try (var stack = MemoryStack.stackPush()) {
+            return this.readSection(keyBuffer(stack, key), INITIAL_READ_SIZE);
         } catch (RocksDBException e) {
             throw new RuntimeException(e);
         }
@@ -95,11 +182,80 @@ public class RocksDBStorageBackend extends StorageBackend {
 
     @Override
     public void setSectionData(long key, ByteBuffer data) {
+        try (var stack = MemoryStack.stackPush()) {
+            //Duplicate since rocksdb moves the buffer position
+            this.db.put(this.worldSections, this.writeOptions, keyBuffer(stack, key), data.duplicate());
+        } catch (RocksDBException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public ByteBuffer[] getSectionDataBatch(long[] keys) {
+        var out = new ByteBuffer[keys.length];
+        if (keys.length == 0) {
+            return out;
+        }
+        var keyData = MemoryUtil.memAlloc(keys.length * Long.BYTES).order(ByteOrder.BIG_ENDIAN);
+        var handles = new ArrayList<ColumnFamilyHandle>(keys.length);
+        var keyBuffers = new ArrayList<ByteBuffer>(keys.length);
+        var values = new ArrayList<ByteBuffer>(keys.length);
         try {
-            var buffer = new byte[data.remaining()];
-            data.get(buffer);
-            data.rewind();
-            this.db.put(this.worldSections, longToBytes(key), buffer);
+            for (int i = 0; i < keys.length; i++) {
+                keyData.putLong(i * Long.BYTES, keys[i]);
+                handles.add(this.worldSections);
+                keyBuffers.add(keyData.slice(i * Long.BYTES, Long.BYTES));
+                values.add(BufferPool.acquire(INITIAL_READ_SIZE));
+            }
+            var results = this.db.multiGetByteBuffers(this.readOptions, handles, keyBuffers, values);
+            for (int i = 0; i < keys.length; i++) {
+                var result = results.get(i);
+                var value = values.get(i);
+                if (result.status.getCode() == Status.Code.NotFound) {
+                    continue;
+                }
+                if (result.status.getCode() != Status.Code.Ok) {
+                    throw new RocksDBException(result.status);
+                }
+                if (result.requiredSize <= value.capacity()) {
+                    value.position(0).limit(result.requiredSize);
+                    out[i] = value;
+                    values.set(i, null);
+                } else {
+                    //Didnt fit, read it on its own with the exact size
+                    out[i] = this.readSection(keyBuffers.get(i), result.requiredSize);
+                }
+            }
+            return out;
+        } catch (RocksDBException e) {
+            for (var buffer : out) {
+                if (buffer != null) {
+                    BufferPool.release(buffer);
+                }
+            }
+            throw new RuntimeException(e);
+        } finally {
+            for (var value : values) {
+                if (value != null) {
+                    BufferPool.release(value);
+                }
+            }
+            MemoryUtil.memFree(keyData);
+        }
+    }
+
+    @Override
+    public void setSectionDataBatch(long[] keys, ByteBuffer[] data) {
+        if (keys.length != data.length) {
+            throw new IllegalArgumentException("Key count does not match data count");
+        }
+        try (var stack = MemoryStack.stackPush(); var batch = new WriteBatch()) {
+            var keyBuff = stack.malloc(Long.BYTES).order(ByteOrder.BIG_ENDIAN);
+            for (int i = 0; i < keys.length; i++) {
+                //The batch copies the key and value so the key buffer can be reused
+                batch.put(this.worldSections, keyBuff.clear().putLong(0, keys[i]), data[i].duplicate());
+            }
+            this.db.write(this.writeOptions, batch);
         } catch (RocksDBException e) {
             throw new RuntimeException(e);
         }
@@ -108,7 +264,7 @@ public class RocksDBStorageBackend extends StorageBackend {
     @Override
     public void deleteSectionData(long key) {
         try {
-            this.db.delete(this.worldSections, longToBytes(key));
+            this.db.delete(this.worldSections, this.writeOptions, longToBytes(key));
         } catch (RocksDBException e) {
             throw new RuntimeException(e);
         }
@@ -120,13 +276,48 @@ public class RocksDBStorageBackend extends StorageBackend {
             var buffer = new byte[data.remaining()];
             data.get(buffer);
             data.rewind();
-            this.db.put(this.idMappings, intToBytes(id), buffer);
+            this.db.put(this.idMappings, this.writeOptions, intToBytes(id), buffer);
         } catch (
                 RocksDBException e) {
             throw new RuntimeException(e);
         }
     }
 
+    @Override
+    public boolean iterateSections(long minKey, long maxKey, boolean withData, SectionVisitor visitor) {
+        //Keys are big endian so the byte order is the same as the unsigned key order
+        try (var stack = MemoryStack.stackPush(); var iterator = this.db.newIterator(this.worldSections, this.iterateOptions)) {
+            var keyBuff = keyBuffer(stack, minKey);
+            ByteBuffer data = withData ? BufferPool.acquire(INITIAL_READ_SIZE) : null;
+            try {
+                for (iterator.seek(keyBuff.duplicate()); iterator.isValid(); iterator.next()) {
+                    iterator.key(keyBuff.clear());
+                    long key = keyBuff.getLong(0);
+                    if (Long.compareUnsigned(maxKey, key) < 0) {
+                        break;
+                    }
+                    if (withData) {
+                        int size = iterator.value(data.clear());
+                        if (data.capacity() < size) {
+                            BufferPool.release(data);
+                            data = BufferPool.acquire(size);
+                            iterator.value(data);
+                        }
+                        data.position(0).limit(size);
+                    }
+                    if (!visitor.visit(key, data)) {
+                        return false;
+                    }
+                }
+            } finally {
+                if (data != null) {
+                    BufferPool.release(data);
+                }
+            }
+        }
+        return true;
+    }
+
     @Override
     public Int2ObjectOpenHashMap<byte[]> getIdMappingsData() {
         var iterator = this.db.newIterator(this.idMappings);
@@ -140,7 +331,14 @@ public class RocksDBStorageBackend extends StorageBackend {
     @Override
     public void flush() {
         try {
-            this.db.flushWal(true);
+            if (this.walDisabled) {
+                //Nothing is in the wal, so the memtables need to be flushed for the data to be persisted
+                try (var flushOptions = new FlushOptions().setWaitForFlush(true)) {
+                    this.db.flush(flushOptions, List.of(this.worldSections, this.idMappings));
+                }
+            } else {
+                this.db.flushWal(true);
+            }
         } catch (RocksDBException e) {
             throw new RuntimeException(e);
         }
@@ -167,19 +365,23 @@ public class RocksDBStorageBackend extends StorageBackend {
         return result;
     }
 
-    private static long bytesToLong(final byte[] b) {
-        long result = 0;
-        for (int i = 0; i < Long.BYTES; i++) {
-            result <<= Byte.SIZE;
-            result |= (b[i] & 0xFF);
-        }
-        return result;
-    }
-
     public static class Config extends StorageConfig {
+        //Size of the block cache shared by all column families
+        public int blockCacheMb = 128;
+        //Bloom filter bits per key on the world sections, 0 to disable
+        public int bloomBitsPerKey = 10;
+        //Use the first key byte (lod level) as prefix for prefix bloom filters
+        public boolean levelPrefix = true;
+        //Either "universal" or "level"
+        public String compactionStyle = "universal";
+        //Skips the write ahead log, faster writes but anything not flushed is lost on a crash
+        public boolean disableWAL = false;
+        //Limits flush and compaction disk writes, 0 for no limit
+        public int rateLimitMbPerSec = 0;
+
         @Override
         public StorageBackend build(ConfigBuildCtx ctx) {
-            return new RocksDBStorageBackend(ctx.ensurePathExists(ctx.substituteString(ctx.resolvePath())));
+            return new RocksDBStorageBackend(ctx.ensurePathExists(ctx.substituteString(ctx.resolvePath())), this);
         }
 
         public static String getConfigTypeName() {
@@ -0,0 +1,79 @@
+package me.cortex.voxy.common.util;
+
+import org.lwjgl.system.MemoryUtil;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+//Pool of power of 2 sized native buffers so that the hot section (de)compression and serialization paths dont
+// memAlloc/memFree ~100KB buffers on every call
+//All buffers handed out are plain memAlloc buffers, so anything that is released here may also just be memFree'd,
+// and any memAlloc'd buffer can be released into the pool (buffers not matching a size class just get freed)
+public class BufferPool {
+    private static final int MIN_CLASS_BITS = 12;//4kb
+    private static final int MAX_CLASS_BITS = 20;//1mb
+    //Max amount of memory retained per size class
+    private static final int CLASS_RETAIN_BYTES = 8<<20;
+
+    private static final ArrayDeque<ByteBuffer>[] POOLS = new ArrayDeque[MAX_CLASS_BITS - MIN_CLASS_BITS + 1];
+    static {
+        for (int i = 0; i < POOLS.length; i++) {
+            POOLS[i] = new ArrayDeque<>();
+        }
+    }
+
+    private static int sizeClass(int size) {
+        return Math.max(MIN_CLASS_BITS, 32 - Integer.numberOfLeadingZeros(Math.max(size, 1) - 1)) - MIN_CLASS_BITS;
+    }
+
+    private static int maxRetained(int sizeClass) {
+        return Math.max(4, CLASS_RETAIN_BYTES >> (sizeClass + MIN_CLASS_BITS));
+    }
+
+    //Returns a native buffer with position 0 and limit of size, the capacity may be larger
+    public static ByteBuffer acquire(int size) {
+        int sizeClass = sizeClass(size);
+        if (POOLS.length <= sizeClass) {
+            return MemoryUtil.memAlloc(size);
+        }
+        ByteBuffer buffer;
+        var pool = POOLS[sizeClass];
+        synchronized (pool) {
+            buffer = pool.poll();
+        }
+        if (buffer == null) {
+            buffer = MemoryUtil.memAlloc(1<<(sizeClass + MIN_CLASS_BITS));
+        }
+        buffer.clear().limit(size);
+        return buffer;
+    }
+
+    public static void release(ByteBuffer buffer) {
+        int capacity = buffer.capacity();
+        int sizeClass = sizeClass(capacity);
+        if (POOLS.length <= sizeClass || (1<<(sizeClass + MIN_CLASS_BITS)) != capacity) {
+            MemoryUtil.memFree(buffer);
+            return;
+        }
+        var pool = POOLS[sizeClass];
+        synchronized (pool) {
+            if (pool.size() < maxRetained(sizeClass)) {
+                pool.push(buffer);
+                return;
+            }
+        }
+        MemoryUtil.memFree(buffer);
+    }
+
+    //Frees all pooled buffers
+    public static void trim() {
+        for (var pool : POOLS) {
+            synchronized (pool) {
+                ByteBuffer buffer;
+                while ((buffer = pool.poll()) != null) {
+                    MemoryUtil.memFree(buffer);
+                }
+            }
+        }
+    }
+}
@@ -1,5 +0,0 @@
-package me.cortex.voxy.common.util;
-
-public class VolatileHolder <T> {
-    public volatile T obj;
-}
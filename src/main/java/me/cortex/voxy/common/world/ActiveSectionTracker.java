@@ -1,98 +1,260 @@
 package me.cortex.voxy.common.world;
 
+import it.unimi.dsi.fastutil.ints.IntArrayList;
 import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
-import me.cortex.voxy.common.util.VolatileHolder;
 import me.cortex.voxy.common.world.other.Mapper;
 
-import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
 
 public class ActiveSectionTracker {
     //Deserialize into the supplied section, returns true on success, false on failure
     public interface SectionLoader {int load(WorldSection section);}
 
-    //Loaded section world cache, TODO: get rid of VolatileHolder and use something more sane
-
-    private final Long2ObjectOpenHashMap<VolatileHolder<WorldSection>>[] loadedSectionCache;
+    //Loaded section world cache, each entry is completed by the thread that loads the section, any other thread that
+    // wants the section while its loading parks on the future instead of spinning
+    //The stripe locks are only ever held for the map operation itself, never while loading
+    private final Long2ObjectOpenHashMap<CompletableFuture<WorldSection>>[] loadedSectionCache;
     private final SectionLoader loader;
-    //private final SectionDataCache dataCache;
 
-    @SuppressWarnings("unchecked")
+    //Retention tier, sections that drop to 0 references stay loaded (and in the map) so the next acquire of them is
+    // just a refcount increment, they are evicted by a CLOCK sweep once the memory budget or slot count is exceeded
+    //Its split the same way as the map, each stripe has its own ring and share of the budget and is guarded by the
+    // same stripe lock, so releases only contend with other threads using the same stripe
+    private static final class RetentionStripe {
+        private final long budget;
+        private final WorldSection[] retained;
+        private final IntArrayList freeSlots = new IntArrayList();
+        private int clockHand;
+        private long retainedBytes;
+
+        private RetentionStripe(long budget, int slots) {
+            this.budget = budget;
+            this.retained = new WorldSection[slots];
+            for (int i = slots - 1; i >= 0; i--) {
+                this.freeSlots.add(i);
+            }
+        }
+    }
+    private final RetentionStripe[] retention;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    //Generation per key (hashed into a fixed number of slots, a collision just causes a spurious reload), bumped every
+    // time a section is freed, so a load whose data was read before a free can tell it might be stale
+    private static final int GENERATION_SLOTS_BITS = 14;
+    private final AtomicLongArray freeGenerations = new AtomicLongArray(1<<GENERATION_SLOTS_BITS);
+
     public ActiveSectionTracker(int numSlicesBits, SectionLoader loader) {
+        this(numSlicesBits, 0, loader);
+    }
+
+    @SuppressWarnings("unchecked")
+    public ActiveSectionTracker(int numSlicesBits, long retentionBytes, SectionLoader loader) {
         this.loader = loader;
+        //Uniform sections are tiny so the slot count rather than the budget bounds how many of them are kept
+        int slots = (int) Math.min(1<<16, Math.max(0, retentionBytes>>16));
+        this.retention = new RetentionStripe[1<<numSlicesBits];
+        for (int i = 0; i < this.retention.length; i++) {
+            this.retention[i] = new RetentionStripe(retentionBytes>>numSlicesBits, slots>>numSlicesBits);
+        }
         this.loadedSectionCache = new Long2ObjectOpenHashMap[1<<numSlicesBits];
+        //Keep the total initial capacity about the same no matter the stripe count
+        int initialCapacity = Math.max(16, 8192>>numSlicesBits);
         for (int i = 0; i < this.loadedSectionCache.length; i++) {
-            this.loadedSectionCache[i] = new Long2ObjectOpenHashMap<>(1024);
+            this.loadedSectionCache[i] = new Long2ObjectOpenHashMap<>(initialCapacity);
         }
     }
 
     public WorldSection acquire(int lvl, int x, int y, int z, boolean nullOnEmpty) {
+        return this.acquire(lvl, x, y, z, nullOnEmpty, this.loader);
+    }
+
+    //Same as acquire but if the section needs loading, its loaded with the supplied loader, used when the section data
+    // was already fetched asynchronously
+    public WorldSection acquire(int lvl, int x, int y, int z, boolean nullOnEmpty, SectionLoader loader) {
         long key = WorldEngine.getWorldSectionId(lvl, x, y, z);
         var cache = this.loadedSectionCache[this.getCacheArrayIndex(key)];
-        VolatileHolder<WorldSection> holder = null;
-        boolean isLoader = false;
-        synchronized (cache) {
-            holder = cache.get(key);
-            if (holder == null) {
-                holder = new VolatileHolder<>();
-                cache.put(key, holder);
-                isLoader = true;
-            }
-            var section = holder.obj;
-            if (section != null) {
-                section.acquire();
-                return section;
-            }
-        }
-        //If this thread was the one to create the reference then its the thread to load the section
-        if (isLoader) {
-            var section = new WorldSection(lvl, x, y, z, this);
-            int status = -1;//this.dataCache.load(section);
-            if (status == -1) {//Cache miss
-                status = this.loader.load(section);
+        while (true) {
+            CompletableFuture<WorldSection> entry;
+            boolean isLoader = false;
+            synchronized (cache) {
+                entry = cache.get(key);
+                if (entry == null) {
+                    entry = new CompletableFuture<>();
+                    cache.put(key, entry);
+                    isLoader = true;
+                } else {
+                    var section = entry.getNow(null);
+                    //A section in the map is never freed (freeing removes it under this lock) so this cant fail
+                    if (section != null) {
+                        //Reviving a section with no references means it came from the retention tier
+                        if (section.acquire() == 1) {
+                            this.hits.increment();
+                        }
+                        return section;
+                    }
+                }
             }
 
-            if (status < 0) {
-                //TODO: Instead if throwing an exception do something better, like attempting to regen
-                //throw new IllegalStateException("Unable to load section: ");
-                System.err.println("Unable to load section " + section.key + " setting to air");
-                status = 1;
+            //If this thread was the one to create the entry then its the thread to load the section
+            if (isLoader) {
+                return this.load(cache, entry, lvl, x, y, z, nullOnEmpty, loader);
             }
-            if (status == 1) {
-                //We need to set the data to air as it is undefined state
-                Arrays.fill(section.data, Mapper.withLight(Mapper.AIR, 15));//Since lighting is inverted
+
+            WorldSection section;
+            try {
+                section = entry.join();
+            } catch (CompletionException e) {
+                throw new IllegalStateException("Section load failed on another thread", e.getCause());
             }
-            section.acquire();
-            holder.obj = section;
-            if (nullOnEmpty && status == 1) {//If its air return null as stated, release the section aswell
-                section.release();
-                return null;
+            //If it got unloaded in between tryAcquire fails (the freed bit is cleared atomically), so just try again
+            if (section.tryAcquire()) {
+                return section;
             }
-            return section;
-        } else {
-            WorldSection section = null;
-            while ((section = holder.obj) == null)
-                Thread.onSpinWait();
+        }
+    }
 
+    private WorldSection load(Long2ObjectOpenHashMap<CompletableFuture<WorldSection>> cache, CompletableFuture<WorldSection> entry, int lvl, int x, int y, int z, boolean nullOnEmpty, SectionLoader loader) {
+        this.misses.increment();
+        var section = new WorldSection(lvl, x, y, z, this);
+        int status;
+        try {
+            status = loader.load(section);
+        } catch (Throwable e) {
+            //Remove the entry so the load can be retried, and wake anyone waiting on it
             synchronized (cache) {
-                if (section.tryAcquire()) {
+                cache.remove(section.key, entry);
+            }
+            entry.completeExceptionally(e);
+            throw e;
+        }
+
+        if (status < 0) {
+            //TODO: Instead if throwing an exception do something better, like attempting to regen
+            //throw new IllegalStateException("Unable to load section: ");
+            System.err.println("Unable to load section " + section.key + " setting to air");
+            status = 1;
+        }
+        if (status == 1) {
+            //We need to set the data to air as it is undefined state
+            section.setUniform(Mapper.withLight(Mapper.AIR, 15));//Since lighting is inverted
+        }
+        section.acquire();
+        entry.complete(section);
+        if (nullOnEmpty && status == 1) {//If its air return null as stated, release the section aswell
+            section.release();
+            return null;
+        }
+        return section;
+    }
+
+    //Returns the section only if its already loaded, never loads it
+    public WorldSection acquireIfLoaded(int lvl, int x, int y, int z) {
+        long key = WorldEngine.getWorldSectionId(lvl, x, y, z);
+        var cache = this.loadedSectionCache[this.getCacheArrayIndex(key)];
+        synchronized (cache) {
+            var entry = cache.get(key);
+            if (entry != null) {
+                var section = entry.getNow(null);
+                if (section != null) {
+                    section.acquire();
                     return section;
                 }
             }
-            return this.acquire(lvl, x, y, z, nullOnEmpty);
         }
+        return null;
     }
 
     void tryUnload(WorldSection section) {
+        int stripeIndex = this.getCacheArrayIndex(section.key);
+        var stripe = this.retention[stripeIndex];
+        if (stripe.retained.length == 0) {
+            this.free(section);
+            return;
+        }
+        synchronized (this.loadedSectionCache[stripeIndex]) {
+            long size = section.getMemoryUsage();
+            if (section.retentionSlot >= 0) {
+                //Already retained, give it a second chance and update its size since it may have been expanded
+                section.retentionReferenced = true;
+                stripe.retainedBytes += size - section.retentionBytes;
+                section.retentionBytes = size;
+            } else {
+                while (stripe.freeSlots.isEmpty() || stripe.budget < stripe.retainedBytes + size) {
+                    if (!this.evictOne(stripe)) {
+                        break;
+                    }
+                }
+                if (stripe.freeSlots.isEmpty() || stripe.budget < stripe.retainedBytes + size) {
+                    //Nothing could be evicted, just unload it
+                    this.free(section);
+                    return;
+                }
+                int slot = stripe.freeSlots.popInt();
+                stripe.retained[slot] = section;
+                section.retentionSlot = slot;
+                section.retentionReferenced = false;
+                section.retentionBytes = size;
+                stripe.retainedBytes += size;
+            }
+            while (stripe.budget < stripe.retainedBytes && this.evictOne(stripe));
+        }
+    }
+
+    //Advances the stripes clock hand until a section without its referenced bit is found and removes it from the
+    // retention tier, freeing it if nothing is using it, returns false if there was nothing to evict
+    //Must hold the stripe lock
+    private boolean evictOne(RetentionStripe stripe) {
+        var retained = stripe.retained;
+        for (int i = 0; i < retained.length * 2; i++) {
+            int slot = stripe.clockHand;
+            stripe.clockHand = (slot + 1) % retained.length;
+            var section = retained[slot];
+            if (section == null) {
+                continue;
+            }
+            if (section.retentionReferenced) {
+                section.retentionReferenced = false;
+                continue;
+            }
+            retained[slot] = null;
+            stripe.freeSlots.add(slot);
+            stripe.retainedBytes -= section.retentionBytes;
+            section.retentionSlot = -1;
+            //If its in use this fails and the section comes back into the tier the next time its released
+            this.free(section);
+            return true;
+        }
+        return false;
+    }
+
+    private void free(WorldSection section) {
         var cache = this.loadedSectionCache[this.getCacheArrayIndex(section.key)];
         synchronized (cache) {
             if (section.trySetFreed()) {
-                if (cache.remove(section.key).obj != section) {
+                var entry = cache.remove(section.key);
+                if (entry == null || entry.getNow(null) != section) {
                     throw new IllegalStateException("Removed section not the same as the referenced section in the cache");
                 }
+                this.freeGenerations.incrementAndGet(getGenerationSlot(section.key));
             }
         }
     }
 
+    private static int getGenerationSlot(long key) {
+        return (int) (mixStafford13(key)>>>(64-GENERATION_SLOTS_BITS));
+    }
+
+    //Must be read before fetching the data for an async load and compared in the loader, if it changed the section was
+    // freed (and possibly edited and saved) while the data was being read so it has to be reloaded
+    public long getFreeGeneration(long key) {
+        return this.freeGenerations.get(getGenerationSlot(key));
+    }
+
     private int getCacheArrayIndex(long pos) {
         return (int) (mixStafford13(pos) & (this.loadedSectionCache.length-1));
     }
@@ -103,6 +265,7 @@ public class ActiveSectionTracker {
         return seed ^ seed >>> 31;
     }
 
+    //Per stripe loaded section counts (which includes the retained sections)
     public int[] getCacheCounts() {
         int[] res = new int[this.loadedSectionCache.length];
         for (int i = 0; i < this.loadedSectionCache.length; i++) {
@@ -111,6 +274,20 @@ public class ActiveSectionTracker {
         return res;
     }
 
+    //Hits, misses (loads), retained section count and retained bytes
+    public long[] getRetentionStats() {
+        long count = 0;
+        long bytes = 0;
+        for (int i = 0; i < this.retention.length; i++) {
+            var stripe = this.retention[i];
+            synchronized (this.loadedSectionCache[i]) {
+                count += stripe.retained.length - stripe.freeSlots.size();
+                bytes += stripe.retainedBytes;
+            }
+        }
+        return new long[]{this.hits.sum(), this.misses.sum(), count, bytes};
+    }
+
 
     public static void main(String[] args) {
         var tracker = new ActiveSectionTracker(1, a->0);
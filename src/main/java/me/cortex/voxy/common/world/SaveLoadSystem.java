@@ -1,97 +1,87 @@
 package me.cortex.voxy.common.world;
 
-import it.unimi.dsi.fastutil.longs.Long2ShortOpenHashMap;
-import it.unimi.dsi.fastutil.longs.LongArrayList;
-import org.lwjgl.system.MemoryUtil;
+import me.cortex.voxy.common.util.BufferPool;
 
 import java.nio.ByteBuffer;
 
-import static org.lwjgl.util.zstd.Zstd.*;
-
 public class SaveLoadSystem {
 
-    //TODO: Cache like long2short and the short and other data to stop allocs
-    public static ByteBuffer serialize(WorldSection section) {
-        var data = section.copyData();
-        var compressed = new short[data.length];
-        Long2ShortOpenHashMap LUT = new Long2ShortOpenHashMap(data.length);
-        LongArrayList LUTVAL = new LongArrayList();
-        for (int i = 0; i < data.length; i++) {
-            long block = data[i];
-            short mapping = LUT.computeIfAbsent(block, id->{
-                LUTVAL.add(id);
-                return (short)(LUTVAL.size()-1);
-            });
-            compressed[i] = mapping;
-        }
-        long[] lut = LUTVAL.toLongArray();
-        ByteBuffer raw = MemoryUtil.memAlloc(compressed.length*2+lut.length*8+512);
+    //Format v2 starts with a header long, the top nibble is HEADER_MARKER which a v1 section can never start with since
+    // there it is the lod level of the key, then the version, flags, bits per palette index, the index data size in
+    // longs and the palette size
+    // hhhh vvvv ffff ffff bbbb bbbb wwww wwww _ wwww wwww pppp pppp pppp pppp pppp pppp
+    //It is followed by the key, the palette, the palette index data as a bit stream (packed lsb first across longs) and
+    // the hash of everything before it
+    //Flags are the IntegrityMode (2 bits, with NONE there is no hash), the layout (2 bits) and the rle run length bits (4)
+    //The index data layout is picked per section, whichever is smallest
+    // packed: an index per voxel
+    // rle: runs along the index order (y major) of (run length - 1, index)
+    // octree: from the whole section down, a node is 0 then the index if its all the same else 1 and its 8 children
+    //  (x then y then z), a single voxel is just the index
+    //v1 is the key, palette length, palette, a short per voxel then the hash, its still readable
+    public static final long HEADER_MARKER = 0xFL;
+    public static final int VERSION = 2;
 
-        long hash = section.key^(lut.length*1293481298141L);
-        raw.putLong(section.key);
-        raw.putInt(lut.length);
-        for (long id : lut) {
-            raw.putLong(id);
-            hash *= 1230987149811L;
-            hash += 12831;
-            hash ^= id;
-        }
+    public static final int LAYOUT_PACKED = 0;
+    public static final int LAYOUT_RLE = 1;
+    public static final int LAYOUT_OCTREE = 2;
 
-        for (int i = 0; i < compressed.length; i++) {
-            short block = compressed[i];
-            raw.putShort(block);
-            hash *= 1230987149811L;
-            hash += 12831;
-            hash ^= (block*1827631L) ^ data[i];
-        }
+    //Largest possible serialized section, every voxel unique so a full palette with 15 bit indices
+    public static final int MAX_SERIALIZED_SIZE = 8 + 8 + 32768*8 + ((32768*15+63)>>>6)*8 + 8;
 
-        raw.putLong(hash);
+    public enum IntegrityMode {
+        //The original chained multiply add over every long, still readable but slow since it cant be vectorized
+        MIX,
+        //Hardware accelerated on basically everything
+        CRC32C,
+        XXHASH64,
+        //For when the compressor/storage already checksums the data
+        NONE;
 
-        raw.limit(raw.position());
-        raw.rewind();
+        public static final IntegrityMode DEFAULT = CRC32C;
 
-        return raw;
+        public static IntegrityMode byName(String name) {
+            for (var mode : values()) {
+                if (mode.name().equalsIgnoreCase(name)) {
+                    return mode;
+                }
+            }
+            System.err.println("Unknown section integrity mode " + name + " using " + DEFAULT);
+            return DEFAULT;
+        }
     }
 
-    public static boolean deserialize(WorldSection section, ByteBuffer data, boolean ignoreMismatchPosition) {
-        long hash = 0;
-        long key = data.getLong();
-        int lutLen = data.getInt();
-        long[] lut = new long[lutLen];
-        hash = key^(lut.length*1293481298141L);
-        for (int i = 0; i < lutLen; i++) {
-            lut[i] = data.getLong();
-            hash *= 1230987149811L;
-            hash += 12831;
-            hash ^= lut[i];
-        }
+    public static int getBitsPerIndex(int paletteSize) {
+        return paletteSize <= 1 ? 0 : 32 - Integer.numberOfLeadingZeros(paletteSize - 1);
+    }
 
-        if ((!ignoreMismatchPosition) && section.key != key) {
-            //throw new IllegalStateException("Decompressed section not the same as requested. got: " + key + " expected: " + section.key);
-            System.err.println("Decompressed section not the same as requested. got: " + key + " expected: " + section.key);
-            return false;
-        }
+    //The section must be acquired while this runs, returns a buffer from the BufferPool
+    public static ByteBuffer serialize(WorldSection section) {
+        return serialize(section, IntegrityMode.DEFAULT);
+    }
 
-        for (int i = 0; i < section.data.length; i++) {
-            short lutId = data.getShort();
-            section.data[i] = lut[lutId];
-            hash *= 1230987149811L;
-            hash += 12831;
-            hash ^= (lutId*1827631L) ^ section.data[i];
-        }
+    public static ByteBuffer serialize(WorldSection section, IntegrityMode integrity) {
+        var codec = SectionCodec.get();
+        ByteBuffer raw = BufferPool.acquire(codec.prepare(section, integrity));
+        codec.write(raw);
+        raw.limit(raw.position());
+        raw.rewind();
+        return raw;
+    }
 
-        long expectedHash = data.getLong();
-        if (expectedHash != hash) {
-            //throw new IllegalStateException("Hash mismatch got: " + hash + " expected: " + expectedHash);
-            System.err.println("Hash mismatch got: " + hash + " expected: " + expectedHash + " removing region");
-            return false;
+    //Serializes into the buffer at its position, advancing it, returns the number of bytes written
+    // the buffer needs at least MAX_SERIALIZED_SIZE remaining unless the caller knows the section is smaller
+    public static int serialize(WorldSection section, ByteBuffer into, IntegrityMode integrity) {
+        var codec = SectionCodec.get();
+        int size = codec.prepare(section, integrity);
+        if (into.remaining() < size) {
+            throw new IllegalArgumentException("Buffer too small for serialized section, need " + size + " got " + into.remaining());
         }
+        codec.write(into);
+        return size;
+    }
 
-        if (data.hasRemaining()) {
-            //throw new IllegalStateException("Decompressed section had excess data");
-            System.err.println("Decompressed section had excess data removing region");
-            return false;
-        }
-        return true;
+    public static boolean deserialize(WorldSection section, ByteBuffer data, boolean ignoreMismatchPosition) {
+        return SectionCodec.get().read(section, data, ignoreMismatchPosition);
     }
 }
@@ -0,0 +1,548 @@
+package me.cortex.voxy.common.world;
+
+import me.cortex.voxy.common.util.XXHash64;
+import me.cortex.voxy.common.world.SaveLoadSystem.IntegrityMode;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.CRC32C;
+
+import static me.cortex.voxy.common.world.SaveLoadSystem.HEADER_MARKER;
+import static me.cortex.voxy.common.world.SaveLoadSystem.LAYOUT_OCTREE;
+import static me.cortex.voxy.common.world.SaveLoadSystem.LAYOUT_PACKED;
+import static me.cortex.voxy.common.world.SaveLoadSystem.LAYOUT_RLE;
+import static me.cortex.voxy.common.world.SaveLoadSystem.VERSION;
+import static me.cortex.voxy.common.world.SaveLoadSystem.getBitsPerIndex;
+
+//Per thread scratch state for SaveLoadSystem, so encoding and decoding a section doesnt allocate anything
+// the format is documented in SaveLoadSystem
+final class SectionCodec {
+    private static final ThreadLocal<SectionCodec> CODECS = ThreadLocal.withInitial(SectionCodec::new);
+
+    private static final int VOXELS = 32*32*32;
+    //Open addressing table of block id -> palette index, twice the max palette size so probes stay short
+    private static final int TABLE_BITS = 16;
+    private static final int TABLE_MASK = (1<<TABLE_BITS)-1;
+    private static final short EMPTY = -1;
+    private static final IntegrityMode[] INTEGRITY_MODES = IntegrityMode.values();
+    //Worst case is rle with every voxel its own run, 15 bits of run length + 15 bits of index each
+    private static final int MAX_STREAM_WORDS = (VOXELS*30+63)>>>6;
+    //Octree levels, level 0 is a single voxel and level 5 is the whole section
+    private static final int OCTREE_LEVELS = 6;
+
+    static SectionCodec get() {
+        return CODECS.get();
+    }
+
+    private final long[] tableKeys = new long[1<<TABLE_BITS];
+    private final short[] tableValues = new short[1<<TABLE_BITS];
+    //The slots that were filled, so clearing only touches those instead of the whole table
+    private final int[] usedSlots = new int[VOXELS];
+
+    private final short[] indices = new short[VOXELS];
+    private final long[] palette = new long[VOXELS];
+    //Palette of a palette mode section and where each entry ended up in the encoded palette
+    private final long[] sectionPalette = new long[WorldSection.MAX_PALETTE_SIZE];
+    private final short[] sectionRemap = new short[WorldSection.MAX_PALETTE_SIZE];
+    private final long[] stream = new long[MAX_STREAM_WORDS];
+    private final CRC32C crc = new CRC32C();
+    private int paletteSize;
+    private long key;
+    private IntegrityMode integrity;
+
+    //Chosen layout for the prepared section and its size in words
+    private int layout;
+    private int streamWords;
+    private int runLengthBits;
+
+    //Per octree level (from 1) the palette index of each node if its uniform or -1, and the encoded size in bits
+    private final int[][] octreeUniform = new int[OCTREE_LEVELS][];
+    private final int[][] octreeCost = new int[OCTREE_LEVELS][];
+
+    //Bit stream state, writes go straight to the output buffer and reads come from this.stream
+    private ByteBuffer bitOut;
+    private long bitWord;
+    private int bitUsed;
+    private int readPos;
+    private int readLimit;
+    private boolean readOverrun;
+
+    private SectionCodec() {
+        Arrays.fill(this.tableValues, EMPTY);
+        for (int lvl = 1; lvl < OCTREE_LEVELS; lvl++) {
+            int cells = 32>>lvl;
+            this.octreeUniform[lvl] = new int[cells*cells*cells];
+            this.octreeCost[lvl] = new int[cells*cells*cells];
+        }
+    }
+
+    private void clearTable() {
+        for (int i = 0; i < this.paletteSize; i++) {
+            this.tableValues[this.usedSlots[i]] = EMPTY;
+        }
+        this.paletteSize = 0;
+    }
+
+    private short paletteIndex(long block) {
+        int slot = (int) ActiveSectionTracker.mixStafford13(block) & TABLE_MASK;
+        while (true) {
+            short value = this.tableValues[slot];
+            if (value == EMPTY) {
+                short index = (short) this.paletteSize;
+                this.tableKeys[slot] = block;
+                this.tableValues[slot] = index;
+                this.usedSlots[index] = slot;
+                this.palette[index] = block;
+                this.paletteSize++;
+                return index;
+            }
+            if (this.tableKeys[slot] == block) {
+                return value;
+            }
+            slot = (slot + 1) & TABLE_MASK;
+        }
+    }
+
+    //Builds the palette and indices from the section and picks the smallest layout, the section must be acquired by
+    // the caller, the data is read directly (each voxel exactly once) instead of from a copy, so a concurrent edit can
+    // at worst produce a mix of old and new voxels which is the same as what a copy would give
+    //Returns the encoded size in bytes
+    int prepare(WorldSection section, IntegrityMode integrity) {
+        this.clearTable();
+        this.key = section.key;
+        this.integrity = integrity;
+        this.layout = LAYOUT_PACKED;
+        this.runLengthBits = 0;
+        if (section.isUniform()) {
+            //Uniform sections are just the single palette entry with no stream, a section stops being uniform at most
+            // once so the value read is the one it had when this started
+            this.paletteIndex(section.getUniformValue());
+            this.streamWords = 0;
+            return 8 + 8 + 8 + (integrity == IntegrityMode.NONE ? 0 : 8);
+        }
+        int sectionPaletteSize = section.copyPaletteTo(this.sectionPalette, this.indices);
+        if (sectionPaletteSize == 1) {
+            //Stopped being uniform between the check above and the copy
+            this.paletteIndex(this.sectionPalette[0]);
+        } else if (sectionPaletteSize > 1) {
+            //The sections palette can have entries that were overwritten, so its remapped to only the used ones
+            var remap = this.sectionRemap;
+            Arrays.fill(remap, 0, sectionPaletteSize, (short) -1);
+            var indices = this.indices;
+            for (int i = 0; i < VOXELS; i++) {
+                int index = indices[i];
+                short mapped = remap[index];
+                if (mapped < 0) {
+                    mapped = remap[index] = this.paletteIndex(this.sectionPalette[index]);
+                }
+                indices[i] = mapped;
+            }
+        } else {
+            var data = section.data;
+            for (int i = 0; i < VOXELS; i++) {
+                this.indices[i] = this.paletteIndex(data[i]);
+            }
+        }
+        int bits = getBitsPerIndex(this.paletteSize);
+        this.streamWords = (VOXELS * bits + 63) >>> 6;
+        if (bits != 0) {
+            int rleWords = this.computeRunLengthWords(bits);
+            if (rleWords < this.streamWords) {
+                this.layout = LAYOUT_RLE;
+                this.streamWords = rleWords;
+            }
+            int octreeWords = (this.computeOctreeBits(bits) + 63) >>> 6;
+            if (octreeWords < this.streamWords) {
+                this.layout = LAYOUT_OCTREE;
+                this.streamWords = octreeWords;
+            }
+        }
+        return 8 + 8 + this.paletteSize*8 + this.streamWords*8 + (integrity == IntegrityMode.NONE ? 0 : 8);
+    }
+
+    //Runs are along the index order which is y major, so a flat surface is a handful of runs per layer
+    private int computeRunLengthWords(int bits) {
+        var indices = this.indices;
+        int runs = 0;
+        int maxRun = 0;
+        int run = 0;
+        short current = indices[0];
+        for (int i = 0; i < VOXELS; i++) {
+            if (indices[i] != current) {
+                runs++;
+                maxRun = Math.max(maxRun, run);
+                current = indices[i];
+                run = 0;
+            }
+            run++;
+        }
+        runs++;
+        maxRun = Math.max(maxRun, run);
+        this.runLengthBits = getBitsPerIndex(maxRun);
+        return (int) ((((long) runs) * (this.runLengthBits + bits) + 63) >>> 6);
+    }
+
+    private static int octreeCell(int lvl, int x, int y, int z) {
+        int shift = 5 - lvl;
+        return (((y<<shift)|z)<<shift)|x;
+    }
+
+    //Builds the octree bottom up, a node is a single flag bit then either the palette index or its 8 children, single
+    // voxels are just the palette index
+    private int computeOctreeBits(int bits) {
+        for (int lvl = 1; lvl < OCTREE_LEVELS; lvl++) {
+            int cells = 32>>lvl;
+            var uniform = this.octreeUniform[lvl];
+            var cost = this.octreeCost[lvl];
+            for (int y = 0; y < cells; y++) {
+                for (int z = 0; z < cells; z++) {
+                    for (int x = 0; x < cells; x++) {
+                        int common = -2;
+                        int childCost = 0;
+                        for (int c = 0; c < 8; c++) {
+                            int cx = (x<<1)|(c&1), cy = (y<<1)|((c>>1)&1), cz = (z<<1)|(c>>2);
+                            int childUniform;
+                            if (lvl == 1) {
+                                childUniform = this.indices[WorldSection.getIndex(cx, cy, cz)];
+                                childCost += bits;
+                            } else {
+                                int cell = octreeCell(lvl-1, cx, cy, cz);
+                                childUniform = this.octreeUniform[lvl-1][cell];
+                                childCost += this.octreeCost[lvl-1][cell];
+                            }
+                            if (common == -2) {
+                                common = childUniform;
+                            } else if (common != childUniform) {
+                                common = -1;
+                            }
+                        }
+                        int cell = octreeCell(lvl, x, y, z);
+                        uniform[cell] = common;
+                        cost[cell] = 1 + (common >= 0 ? bits : childCost);
+                    }
+                }
+            }
+        }
+        return this.octreeCost[OCTREE_LEVELS-1][0];
+    }
+
+    private void putBits(long value, int count) {
+        if (count == 0) {
+            return;
+        }
+        this.bitWord |= value << this.bitUsed;
+        this.bitUsed += count;
+        if (this.bitUsed >= 64) {
+            this.bitOut.putLong(this.bitWord);
+            this.bitUsed -= 64;
+            //Carry over the bits that didnt fit
+            this.bitWord = this.bitUsed == 0 ? 0 : value >>> (count - this.bitUsed);
+        }
+    }
+
+    private void flushBits() {
+        if (this.bitUsed != 0) {
+            this.bitOut.putLong(this.bitWord);
+        }
+        this.bitOut = null;
+        this.bitWord = 0;
+        this.bitUsed = 0;
+    }
+
+    private int readBits(int count) {
+        if (count == 0) {
+            return 0;
+        }
+        int pos = this.readPos;
+        if (this.readLimit < pos + count) {
+            this.readOverrun = true;
+            return 0;
+        }
+        this.readPos = pos + count;
+        int word = pos>>>6;
+        int offset = pos&63;
+        long value = this.stream[word]>>>offset;
+        if (offset + count > 64) {
+            //Split across 2 longs
+            value |= this.stream[word+1]<<(64-offset);
+        }
+        return (int) (value&((1L<<count)-1));
+    }
+
+    //Writes the prepared section at the position of the buffer, advancing it
+    void write(ByteBuffer raw) {
+        int start = raw.position();
+        int bits = getBitsPerIndex(this.paletteSize);
+        long flags = this.integrity.ordinal() | (this.layout<<2) | (this.runLengthBits<<4);
+        long header = (HEADER_MARKER<<60) | (((long)VERSION)<<56) | (flags<<48) | (((long)bits)<<40) | (((long)this.streamWords)<<24) | this.paletteSize;
+        raw.putLong(header);
+        raw.putLong(this.key);
+
+        for (int i = 0; i < this.paletteSize; i++) {
+            raw.putLong(this.palette[i]);
+        }
+
+        if (bits != 0) {
+            this.bitOut = raw;
+            switch (this.layout) {
+                case LAYOUT_PACKED -> {
+                    for (int i = 0; i < VOXELS; i++) {
+                        this.putBits(this.indices[i], bits);
+                    }
+                }
+                case LAYOUT_RLE -> this.writeRuns(bits);
+                case LAYOUT_OCTREE -> this.writeOctreeNode(OCTREE_LEVELS-1, 0, 0, 0, bits);
+            }
+            this.flushBits();
+        }
+
+        if (this.integrity != IntegrityMode.NONE) {
+            raw.putLong(this.hash(this.integrity, raw, start, raw.position() - start, header, this.key));
+        }
+    }
+
+    private void writeRuns(int bits) {
+        var indices = this.indices;
+        int run = 0;
+        short current = indices[0];
+        for (int i = 0; i < VOXELS; i++) {
+            if (indices[i] != current) {
+                this.putBits(run - 1, this.runLengthBits);
+                this.putBits(current, bits);
+                current = indices[i];
+                run = 0;
+            }
+            run++;
+        }
+        this.putBits(run - 1, this.runLengthBits);
+        this.putBits(current, bits);
+    }
+
+    private void writeOctreeNode(int lvl, int x, int y, int z, int bits) {
+        if (lvl == 0) {
+            this.putBits(this.indices[WorldSection.getIndex(x, y, z)], bits);
+            return;
+        }
+        int uniform = this.octreeUniform[lvl][octreeCell(lvl, x, y, z)];
+        if (uniform >= 0) {
+            this.putBits(0, 1);
+            this.putBits(uniform, bits);
+            return;
+        }
+        this.putBits(1, 1);
+        for (int c = 0; c < 8; c++) {
+            this.writeOctreeNode(lvl-1, (x<<1)|(c&1), (y<<1)|((c>>1)&1), (z<<1)|(c>>2), bits);
+        }
+    }
+
+    private static long mixWord(long hash, long word) {
+        hash *= 1230987149811L;
+        hash += 12831;
+        return hash ^ word;
+    }
+
+    //Hash of the length bytes at start, which is the header, key, palette and indices
+    private long hash(IntegrityMode integrity, ByteBuffer buffer, int start, int length, long header, long key) {
+        return switch (integrity) {
+            case MIX -> {
+                long hash = key^((header&0xFFFFFF)*1293481298141L)^header;
+                for (int i = start + 16; i < start + length; i += 8) {
+                    hash = mixWord(hash, buffer.getLong(i));
+                }
+                yield hash;
+            }
+            case CRC32C -> {
+                var crc = this.crc;
+                crc.reset();
+                crc.update(buffer.slice(start, length));
+                yield crc.getValue();
+            }
+            case XXHASH64 -> XXHash64.hash(buffer, start, length, 0);
+            case NONE -> 0;
+        };
+    }
+
+    boolean read(WorldSection section, ByteBuffer data, boolean ignoreMismatchPosition) {
+        if ((data.getLong(data.position())>>>60) != HEADER_MARKER) {
+            return this.readV1(section, data, ignoreMismatchPosition);
+        }
+        int start = data.position();
+        long header = data.getLong();
+        int version = (int) ((header>>>56)&0xF);
+        if (version != VERSION) {
+            System.err.println("Section has unknown format version " + version + " removing region");
+            return false;
+        }
+        int flags = (int) ((header>>>48)&0xFF);
+        var integrity = INTEGRITY_MODES[flags&0x3];
+        int layout = (flags>>>2)&0x3;
+        int runLengthBits = flags>>>4;
+        int bits = (int) ((header>>>40)&0xFF);
+        int words = (int) ((header>>>24)&0xFFFF);
+        int lutLen = (int) (header&0xFFFFFF);
+        if (lutLen == 0 || VOXELS < lutLen || bits != getBitsPerIndex(lutLen) || MAX_STREAM_WORDS < words || LAYOUT_OCTREE < layout) {
+            System.err.println("Section has an invalid header removing region");
+            return false;
+        }
+        //Sections from before the alternative layouts didnt store the word count
+        if (layout == LAYOUT_PACKED) {
+            words = (VOXELS * bits + 63) >>> 6;
+        }
+        long key = data.getLong();
+        if ((!ignoreMismatchPosition) && section.key != key) {
+            System.err.println("Decompressed section not the same as requested. got: " + key + " expected: " + section.key);
+            return false;
+        }
+
+        int trailer = integrity == IntegrityMode.NONE ? 0 : 1;
+        if (data.remaining() != (lutLen + words + trailer) * 8L) {
+            System.err.println("Decompressed section has the wrong size removing region");
+            return false;
+        }
+
+        //Verify everything up front over the raw bytes, so the decode loops below are just the decode
+        if (integrity != IntegrityMode.NONE) {
+            int length = 16 + (lutLen + words) * 8;
+            long hash = this.hash(integrity, data, start, length, header, key);
+            long expectedHash = data.getLong(start + length);
+            if (expectedHash != hash) {
+                System.err.println("Hash mismatch got: " + hash + " expected: " + expectedHash + " removing region");
+                return false;
+            }
+        }
+
+        var lut = this.palette;
+        for (int i = 0; i < lutLen; i++) {
+            lut[i] = data.getLong();
+        }
+
+        if (bits == 0) {
+            //Stays compact, the array is only created if something different gets written
+            section.setUniform(lut[0]);
+        } else {
+            var out = this.indices;
+            for (int i = 0; i < words; i++) {
+                this.stream[i] = data.getLong();
+            }
+            this.readPos = 0;
+            this.readLimit = words * 64;
+            this.readOverrun = false;
+            boolean valid = switch (layout) {
+                case LAYOUT_PACKED -> this.readPacked(out, lutLen, bits);
+                case LAYOUT_RLE -> this.readRuns(out, lutLen, bits, runLengthBits);
+                default -> this.readOctreeNode(out, lutLen, bits, 32, 0, 0, 0);
+            };
+            if (!valid || this.readOverrun) {
+                System.err.println("Section has invalid index data removing region");
+                return false;
+            }
+            section.setFromPalette(lut, lutLen, out);
+        }
+        //Skip over the hash
+        data.position(data.limit());
+        return true;
+    }
+
+    private boolean readPacked(short[] out, int lutLen, int bits) {
+        for (int i = 0; i < VOXELS; i++) {
+            int index = this.readBits(bits);
+            if (index >= lutLen) {
+                return false;
+            }
+            out[i] = (short) index;
+        }
+        return true;
+    }
+
+    private boolean readRuns(short[] out, int lutLen, int bits, int runLengthBits) {
+        int pos = 0;
+        while (pos < VOXELS) {
+            int run = this.readBits(runLengthBits) + 1;
+            int index = this.readBits(bits);
+            if (index >= lutLen || VOXELS < pos + run || this.readOverrun) {
+                return false;
+            }
+            Arrays.fill(out, pos, pos + run, (short) index);
+            pos += run;
+        }
+        return true;
+    }
+
+    private boolean readOctreeNode(short[] out, int lutLen, int bits, int size, int x, int y, int z) {
+        if (size == 1) {
+            int index = this.readBits(bits);
+            if (index >= lutLen) {
+                return false;
+            }
+            out[WorldSection.getIndex(x, y, z)] = (short) index;
+            return true;
+        }
+        if (this.readBits(1) == 0) {
+            int index = this.readBits(bits);
+            if (index >= lutLen) {
+                return false;
+            }
+            short value = (short) index;
+            //x is the innermost coordinate so each row is a contiguous fill
+            for (int dy = 0; dy < size; dy++) {
+                for (int dz = 0; dz < size; dz++) {
+                    int base = WorldSection.getIndex(x, y + dy, z + dz);
+                    Arrays.fill(out, base, base + size, value);
+                }
+            }
+            return true;
+        }
+        int half = size>>1;
+        for (int c = 0; c < 8; c++) {
+            if (this.readOverrun || !this.readOctreeNode(out, lutLen, bits, half, x + (c&1)*half, y + ((c>>1)&1)*half, z + (c>>2)*half)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    //Pre bit packing format
+    private boolean readV1(WorldSection section, ByteBuffer data, boolean ignoreMismatchPosition) {
+        long key = data.getLong();
+        int lutLen = data.getInt();
+        if (lutLen <= 0 || VOXELS < lutLen) {
+            System.err.println("Section has an invalid palette size removing region");
+            return false;
+        }
+        var lut = this.palette;
+        long hash = key^(lutLen*1293481298141L);
+        for (int i = 0; i < lutLen; i++) {
+            lut[i] = data.getLong();
+            hash = mixWord(hash, lut[i]);
+        }
+
+        if ((!ignoreMismatchPosition) && section.key != key) {
+            System.err.println("Decompressed section not the same as requested. got: " + key + " expected: " + section.key);
+            return false;
+        }
+
+        var out = this.indices;
+        for (int i = 0; i < VOXELS; i++) {
+            short lutId = data.getShort();
+            if (lutId < 0 || lutLen <= lutId) {
+                System.err.println("Section has an out of range palette index removing region");
+                return false;
+            }
+            out[i] = lutId;
+            hash = mixWord(hash, (lutId*1827631L) ^ lut[lutId]);
+        }
+
+        long expectedHash = data.getLong();
+        if (expectedHash != hash) {
+            System.err.println("Hash mismatch got: " + hash + " expected: " + expectedHash + " removing region");
+            return false;
+        }
+
+        if (data.hasRemaining()) {
+            System.err.println("Decompressed section had excess data removing region");
+            return false;
+        }
+        section.setFromPalette(lut, lutLen, out);
+        return true;
+    }
+}
@@ -1,15 +1,22 @@
 package me.cortex.voxy.common.world;
 
 import me.cortex.voxy.common.storage.StorageCompressor;
+import me.cortex.voxy.common.storage.StorageIOExecutor;
 import me.cortex.voxy.common.voxelization.VoxelizedSection;
 import me.cortex.voxy.common.world.other.Mapper;
+import me.cortex.voxy.common.world.other.StorageRetrainTask;
 import me.cortex.voxy.common.world.service.SectionSavingService;
 import me.cortex.voxy.common.world.service.VoxelIngestService;
 import me.cortex.voxy.common.storage.StorageBackend;
 import me.cortex.voxy.common.storage.other.AbyssStorageAdaptor;
-import org.lwjgl.system.MemoryUtil;
+import me.cortex.voxy.common.util.BufferPool;
+import it.unimi.dsi.fastutil.longs.Long2ObjectLinkedOpenHashMap;
 
-import java.util.Arrays;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
 import java.util.function.Consumer;
 
 //Use an LMDB backend to store the world, use a local inmemory cache for lod sections
@@ -22,6 +29,16 @@ public class WorldEngine {
     public final SectionSavingService savingService;
     private Consumer<WorldSection> dirtyCallback;
     private final int maxMipLevels;
+    //Number of stripes (as bits) the loaded section map is split into, more stripes means less lock contention
+    // between the render, saving and ingest threads acquiring sections
+    public static final int DEFAULT_TRACKER_STRIPE_BITS = 6;
+    //Memory budget for keeping released sections loaded so reacquiring them doesnt need a storage read
+    public static final long DEFAULT_SECTION_RETENTION_BYTES = 256L<<20;
+    //Integrity hash used when saving sections, loading handles any mode
+    private volatile SaveLoadSystem.IntegrityMode integrityMode = SaveLoadSystem.IntegrityMode.DEFAULT;
+    //Background storage retrain, owned here so it gets stopped before the storage is closed
+    private StorageRetrainTask retrainTask;
+    private Thread retrainThread;
 
 
     public void setDirtyCallback(Consumer<WorldSection> tracker) {
@@ -30,32 +47,52 @@ public class WorldEngine {
 
     public Mapper getMapper() {return this.mapper;}
 
+    public SaveLoadSystem.IntegrityMode getIntegrityMode() {return this.integrityMode;}
+
+    public void setIntegrityMode(SaveLoadSystem.IntegrityMode integrityMode) {
+        this.integrityMode = integrityMode;
+    }
+
     public WorldEngine(StorageBackend storageBackend, int ingestWorkers, int savingServiceWorkers, int maxMipLayers) {
+        this(storageBackend, ingestWorkers, savingServiceWorkers, maxMipLayers, DEFAULT_TRACKER_STRIPE_BITS, DEFAULT_SECTION_RETENTION_BYTES);
+    }
+
+    public WorldEngine(StorageBackend storageBackend, int ingestWorkers, int savingServiceWorkers, int maxMipLayers, int trackerStripeBits, long sectionRetentionBytes) {
         this.maxMipLevels = maxMipLayers;
         this.storage = new AbyssStorageAdaptor(storageBackend);
         this.mapper = new Mapper(this.storage);
-        //4 cache size bits means that the section tracker has 16 separate maps that it uses
-        this.sectionTracker = new ActiveSectionTracker(3, this::unsafeLoadSection);
+        //6 cache size bits means that the section tracker has 64 separate maps that it uses
+        this.sectionTracker = new ActiveSectionTracker(trackerStripeBits, sectionRetentionBytes, this::unsafeLoadSection);
 
         this.savingService = new SectionSavingService(this, savingServiceWorkers);
         this.ingestService  = new VoxelIngestService(this, ingestWorkers);
     }
 
     private int unsafeLoadSection(WorldSection into) {
+        //Never written sections are just air, no need to go to storage for them
+        if (!this.storage.mayContainSection(into.key)) {
+            return 1;
+        }
         var data = this.storage.getSectionData(into.key);
+        try {
+            return this.loadSection(into, data);
+        } finally {
+            if (data != null) {
+                BufferPool.release(data);
+            }
+        }
+    }
+
+    private int loadSection(WorldSection into, ByteBuffer data) {
         if (data != null) {
-            try {
-                if (!SaveLoadSystem.deserialize(into, data, true)) {
-                    this.storage.deleteSectionData(into.key);
-                    //TODO: regenerate the section from children
-                    Arrays.fill(into.data, Mapper.AIR);
-                    System.err.println("Section " + into.lvl + ", " + into.x + ", " + into.y + ", " + into.z + " was unable to load, removing");
-                    return -1;
-                } else {
-                    return 0;
-                }
-            } finally {
-                MemoryUtil.memFree(data);
+            if (!SaveLoadSystem.deserialize(into, data, true)) {
+                this.storage.deleteSectionData(into.key);
+                //TODO: regenerate the section from children
+                into.setUniform(Mapper.AIR);
+                System.err.println("Section " + into.lvl + ", " + into.x + ", " + into.y + ", " + into.z + " was unable to load, removing");
+                return -1;
+            } else {
+                return 0;
             }
         } else {
             //TODO: if we need to fetch an lod from a server, send the request here and block until the request is finished
@@ -73,6 +110,42 @@ public class WorldEngine {
         return this.sectionTracker.acquire(lvl, x, y, z, false);
     }
 
+    //Async versions of acquire, the section data is read on the storage io threads and the section is deserialized
+    // there once its ready, so callers dont block on disk or decompression
+    public CompletableFuture<WorldSection> acquireAsync(int lvl, int x, int y, int z) {
+        return this.acquireAsync(lvl, x, y, z, false);
+    }
+
+    public CompletableFuture<WorldSection> acquireIfExistsAsync(int lvl, int x, int y, int z) {
+        return this.acquireAsync(lvl, x, y, z, true);
+    }
+
+    private CompletableFuture<WorldSection> acquireAsync(int lvl, int x, int y, int z, boolean nullOnEmpty) {
+        var loaded = this.sectionTracker.acquireIfLoaded(lvl, x, y, z);
+        if (loaded != null) {
+            return CompletableFuture.completedFuture(loaded);
+        }
+        long key = getWorldSectionId(lvl, x, y, z);
+        //If the section gets freed after this point it may have been edited and saved in the meantime, so whatever was
+        // read is stale and the section has to be loaded again synchronously
+        long generation = this.sectionTracker.getFreeGeneration(key);
+        if (!this.storage.mayContainSection(key)) {
+            return CompletableFuture.completedFuture(this.sectionTracker.acquire(lvl, x, y, z, nullOnEmpty, section ->
+                    this.sectionTracker.getFreeGeneration(key) == generation ? 1 : this.unsafeLoadSection(section)));
+        }
+        return this.storage.getSectionDataAsync(key).thenApply(data -> {
+            try {
+                //If the section got loaded in the meantime the data just gets dropped
+                return this.sectionTracker.acquire(lvl, x, y, z, nullOnEmpty, section ->
+                        this.sectionTracker.getFreeGeneration(key) == generation ? this.loadSection(section, data) : this.unsafeLoadSection(section));
+            } finally {
+                if (data != null) {
+                    BufferPool.release(data);
+                }
+            }
+        });
+    }
+
     //TODO: Fixme/optimize, cause as the lvl gets higher, the size of x,y,z gets smaller so i can dynamically compact the format
     // depending on the lvl, which should optimize colisions and whatnot
     public static long getWorldSectionIdOld(int lvl, int x, int y, int z) {
@@ -145,19 +218,12 @@ public class WorldEngine {
         //The >>1 is cause the world sections size is 32x32x32 vs the 16x16x16 of the voxelized section
         for (int lvl = 0; lvl < this.maxMipLevels; lvl++) {
             var worldSection = this.acquire(lvl, section.x >> (lvl + 1), section.y >> (lvl + 1), section.z >> (lvl + 1));
-            int msk = (1<<(lvl+1))-1;
-            int bx = (section.x&msk)<<(4-lvl);
-            int by = (section.y&msk)<<(4-lvl);
-            int bz = (section.z&msk)<<(4-lvl);
-            boolean didChange = false;
-            for (int y = by; y < (16>>lvl)+by; y++) {
-                for (int z = bz; z < (16>>lvl)+bz; z++) {
-                    for (int x = bx; x < (16>>lvl)+bx; x++) {
-                        long newId = section.get(lvl, x-bx, y-by, z-bz);
-                        long oldId = worldSection.set(x, y, z, newId);
-                        didChange |= newId != oldId;
-                    }
-                }
+            boolean didChange;
+            worldSection.lockWrites();
+            try {
+                didChange = writeUpdate(worldSection, section, lvl);
+            } finally {
+                worldSection.unlockWrites();
             }
 
             //Need to release the section after using it
@@ -173,15 +239,104 @@ public class WorldEngine {
         }
     }
 
+    //Same as insertUpdate for many sections at once (e.g. a whole chunk column), the updates are grouped by the world
+    // section they land in at each level so each one is acquired, written and marked dirty once instead of once per
+    // update, only updates that changed something carry on to the next level
+    //Only one world section is write locked at a time so there is no lock ordering to get wrong
+    public void insertUpdates(Collection<VoxelizedSection> sections) {
+        List<VoxelizedSection> pending = new ArrayList<>(sections);
+        var groups = new Long2ObjectLinkedOpenHashMap<List<VoxelizedSection>>();
+        for (int lvl = 0; lvl < this.maxMipLevels && !pending.isEmpty(); lvl++) {
+            groups.clear();
+            int shift = lvl + 1;
+            for (var section : pending) {
+                groups.computeIfAbsent(getWorldSectionId(lvl, section.x >> shift, section.y >> shift, section.z >> shift), k -> new ArrayList<>(8)).add(section);
+            }
+            pending = new ArrayList<>();
+            for (var group : groups.long2ObjectEntrySet()) {
+                long key = group.getLongKey();
+                var worldSection = this.acquire(lvl, getX(key), getY(key), getZ(key));
+                boolean didChange = false;
+                worldSection.lockWrites();
+                try {
+                    for (var section : group.getValue()) {
+                        if (writeUpdate(worldSection, section, lvl)) {
+                            didChange = true;
+                            pending.add(section);
+                        }
+                    }
+                } finally {
+                    worldSection.unlockWrites();
+                }
+                if (didChange) {
+                    this.markDirty(worldSection);
+                }
+                worldSection.release();
+            }
+        }
+    }
+
+    //Writes the lvl mip of the update into the world section, the write lock must be held, returns if anything changed
+    private static boolean writeUpdate(WorldSection worldSection, VoxelizedSection section, int lvl) {
+        int msk = (1<<(lvl+1))-1;
+        int bx = (section.x&msk)<<(4-lvl);
+        int by = (section.y&msk)<<(4-lvl);
+        int bz = (section.z&msk)<<(4-lvl);
+        boolean didChange = false;
+        for (int y = by; y < (16>>lvl)+by; y++) {
+            for (int z = bz; z < (16>>lvl)+bz; z++) {
+                for (int x = bx; x < (16>>lvl)+bx; x++) {
+                    long newId = section.get(lvl, x-bx, y-by, z-bz);
+                    long oldId = worldSection.set(x, y, z, newId);
+                    didChange |= newId != oldId;
+                }
+            }
+        }
+        return didChange;
+    }
+
     public int[] getLoadedSectionCacheSizes() {
         return this.sectionTracker.getCacheCounts();
     }
 
+    public long[] getSectionRetentionStats() {
+        return this.sectionTracker.getRetentionStats();
+    }
+
+    //Starts retraining the storage compression in the background, returns false if a retrain is already running
+    public synchronized boolean startStorageRetrain(Consumer<String> statusCallback) {
+        if (this.retrainThread != null && this.retrainThread.isAlive()) {
+            return false;
+        }
+        this.retrainTask = new StorageRetrainTask(this, statusCallback);
+        this.retrainThread = new Thread(this.retrainTask, "Voxy storage retrain");
+        this.retrainThread.setDaemon(true);
+        this.retrainThread.start();
+        return true;
+    }
+
+    private synchronized void stopStorageRetrain() {
+        if (this.retrainThread == null) {
+            return;
+        }
+        this.retrainTask.stop();
+        try {
+            this.retrainThread.join();
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+        this.retrainThread = null;
+        this.retrainTask = null;
+    }
+
     public void shutdown() {
+        //The retrain reads from and saves to the storage so it has to be fully stopped before anything else
+        try {this.stopStorageRetrain();} catch (Exception e) {System.err.println(e);}
         try {this.storage.flush();} catch (Exception e) {System.err.println(e);}
         //Shutdown in this order to preserve as much data as possible
         try {this.ingestService.shutdown();} catch (Exception e) {System.err.println(e);}
         try {this.savingService.shutdown();} catch (Exception e) {System.err.println(e);}
+        try {this.storage.collectAllBackends().forEach(StorageIOExecutor.INSTANCE::awaitIdle);} catch (Exception e) {System.err.println(e);}
         try {this.storage.close();} catch (Exception e) {System.err.println(e);}
     }
 }
@@ -1,18 +1,28 @@
 package me.cortex.voxy.common.world;
 
 
+import it.unimi.dsi.fastutil.longs.Long2IntOpenHashMap;
+import me.cortex.voxy.common.world.other.Mapper;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
 import java.util.ArrayDeque;
 import java.util.Arrays;
 import java.util.Deque;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
 
 //Represents a loaded world section at a specific detail level
 // holds a 32x32x32 region of detail
 public final class WorldSection {
-    private static final int ARRAY_REUSE_CACHE_SIZE = 256;
+    //Only full array sections use these, so only a few are kept around
+    private static final int ARRAY_REUSE_CACHE_SIZE = 32;
     //TODO: maybe just swap this to a ConcurrentLinkedDeque
     private static final Deque<long[]> ARRAY_REUSE_CACHE = new ArrayDeque<>(1024);
+    private static final int VOXELS = 32 * 32 * 32;
+    //Past this many distinct values the section is switched to a full array
+    static final int MAX_PALETTE_SIZE = 256;
 
 
     public final int lvl;
@@ -21,13 +31,167 @@ public final class WorldSection {
     public final int z;
     public final long key;
 
-    long[] data = null;
+    //A section is in one of 3 representations
+    // uniform: data and palette are null, every voxel is uniformValue, most sections (all air, all stone, all water)
+    // palette: a palette of up to MAX_PALETTE_SIZE values and bit packed indices into it, most other sections
+    // full: data is the long per voxel array
+    //Moving to a bigger representation only happens when something is written that doesnt fit, the full array is
+    // never left once reached (until the section is reloaded)
+    //Palette writes and all transitions are done holding the section monitor, reads only take it to copy out a
+    // consistent palette, get reads the volatile fields without it, full array reads and writes arent synchronized
+    // (as they always were)
+    volatile long[] data = null;
+    private volatile Palette palette;
+    private long uniformValue;
+
+    //Occupancy metadata so consumers can skip empty sections or columns without scanning every voxel, kept up to date
+    // on every set and load
+    //For each axis there is a 32x32 bitmask of which columns along that axis have any non air voxel, axis 0 is y
+    // columns indexed by (x, z), axis 1 is z columns indexed by (x, y) and axis 2 is x columns indexed by (y, z)
+    //The masks are a conservative superset, a bit is never cleared when its column goes back to all air (that would
+    // need a rescan of the column) only on load, so a set bit means the column may have a block and a clear bit means
+    // it definitely has none
+    //Null while uniform
+    private volatile long[] occupancy;
+    private volatile int nonAirCount;
+    private static final VarHandle NON_AIR_COUNT;
+    private static final VarHandle OCCUPANCY = MethodHandles.arrayElementVarHandle(long[].class);
+    static {
+        try {
+            NON_AIR_COUNT = MethodHandles.lookup().findVarHandle(WorldSection.class, "nonAirCount", int.class);
+        } catch (ReflectiveOperationException e) {
+            throw new RuntimeException(e);
+        }
+    }
     private final ActiveSectionTracker tracker;
     public final AtomicBoolean inSaveQueue = new AtomicBoolean();
+    //Serializes writers (ingest and import workers) so their read old value then write sequences dont interleave,
+    // readers dont take it
+    private final ReentrantLock writeLock = new ReentrantLock();
+
+    //Retention tier state, guarded by the trackers stripe lock for this section, the slot is -1 if not retained
+    int retentionSlot = -1;
+    boolean retentionReferenced;
+    long retentionBytes;
 
     //When the first bit is set it means its loaded
     private final AtomicInteger atomicState = new AtomicInteger(1);
 
+    //Bit packed palette indices, the bits per index are a power of 2 so an index never spans 2 longs
+    //Only written holding the section monitor, unlocked readers get the bits per index from the length of the words
+    // array so a resize is seen all at once, and the words are written with release so a reader that sees an index
+    // also sees its value
+    private static final class Palette {
+        private static final VarHandle WORDS = MethodHandles.arrayElementVarHandle(long[].class);
+        private final long[] values;
+        private int size;
+        private volatile long[] words;
+        //Only created once the palette gets big enough that a linear search is slow
+        private Long2IntOpenHashMap lookup;
+
+        private Palette(int bitsLog2) {
+            this.values = new long[MAX_PALETTE_SIZE];
+            this.words = new long[VOXELS>>>(6 - bitsLog2)];
+        }
+
+        //There are VOXELS>>>(6 - bitsLog2) = 1<<(9 + bitsLog2) words
+        private static int bitsLog2Of(long[] words) {
+            return Integer.numberOfTrailingZeros(words.length) - 9;
+        }
+
+        private static int bitsLog2For(int size) {
+            int bits = SaveLoadSystem.getBitsPerIndex(size);
+            return bits <= 1 ? 0 : 32 - Integer.numberOfLeadingZeros(bits - 1);
+        }
+
+        private int get(int idx) {
+            return get(this.words, idx);
+        }
+
+        private static int get(long[] words, int idx) {
+            int bitsLog2 = bitsLog2Of(words);
+            int shift = (idx & ((64>>>bitsLog2)-1))<<bitsLog2;
+            return (int) (((long) WORDS.getAcquire(words, idx>>>(6-bitsLog2))>>>shift) & ((1L<<(1<<bitsLog2))-1));
+        }
+
+        private void set(int idx, int index) {
+            set(this.words, idx, index);
+        }
+
+        private static void set(long[] words, int idx, int index) {
+            int bitsLog2 = bitsLog2Of(words);
+            int shift = (idx & ((64>>>bitsLog2)-1))<<bitsLog2;
+            int word = idx>>>(6-bitsLog2);
+            long mask = ((1L<<(1<<bitsLog2))-1)<<shift;
+            WORDS.setRelease(words, word, (words[word] & ~mask) | (((long) index)<<shift));
+        }
+
+        //Returns the index of the value, adding it if needed, or -1 if the palette is full
+        private int indexOf(long value) {
+            if (this.lookup != null) {
+                int index = this.lookup.get(value);
+                if (index >= 0) {
+                    return index;
+                }
+            } else {
+                for (int i = 0; i < this.size; i++) {
+                    if (this.values[i] == value) {
+                        return i;
+                    }
+                }
+            }
+            if (this.size == MAX_PALETTE_SIZE) {
+                return -1;
+            }
+            int index = this.size++;
+            this.values[index] = value;
+            if (this.lookup != null) {
+                this.lookup.put(value, index);
+            } else if (this.size > 16) {
+                this.lookup = new Long2IntOpenHashMap(MAX_PALETTE_SIZE);
+                this.lookup.defaultReturnValue(-1);
+                for (int i = 0; i < this.size; i++) {
+                    this.lookup.put(this.values[i], i);
+                }
+            }
+            int needed = bitsLog2For(this.size);
+            if (needed != bitsLog2Of(this.words)) {
+                this.resize(needed);
+            }
+            return index;
+        }
+
+        //Fills the new words before publishing them so unlocked readers never see a partial copy
+        private void resize(int bitsLog2) {
+            var oldWords = this.words;
+            var words = new long[VOXELS>>>(6 - bitsLog2)];
+            for (int i = 0; i < VOXELS; i++) {
+                set(words, i, get(oldWords, i));
+            }
+            this.words = words;
+        }
+
+        private void decodeTo(long[] out) {
+            var values = this.values;
+            var words = this.words;
+            int bitsLog2 = bitsLog2Of(words);
+            int bits = 1<<bitsLog2;
+            int perWord = 64>>>bitsLog2;
+            long mask = (1L<<bits)-1;
+            int idx = 0;
+            for (long word : words) {
+                for (int i = 0; i < perWord; i++) {
+                    out[idx++] = values[(int) (word & mask)];
+                    word >>>= bits;
+                }
+            }
+        }
+
+        private long memoryUsage() {
+            return this.words.length * 8L + this.values.length * 8L + (this.lookup == null ? 0 : MAX_PALETTE_SIZE * 24L);
+        }
+    }
+
     WorldSection(int lvl, int x, int y, int z, ActiveSectionTracker tracker) {
         this.lvl = lvl;
         this.x = x;
@@ -35,17 +199,204 @@ public final class WorldSection {
         this.z = z;
         this.key = WorldEngine.getWorldSectionId(lvl, x, y, z);
         this.tracker = tracker;
+    }
 
+    private static long[] allocateArray() {
+        long[] array = null;
         if (!ARRAY_REUSE_CACHE.isEmpty()) {
             synchronized (ARRAY_REUSE_CACHE) {
-                this.data = ARRAY_REUSE_CACHE.poll();
+                array = ARRAY_REUSE_CACHE.poll();
             }
         }
-        if (this.data == null) {
-            this.data = new long[32 * 32 * 32];
+        if (array == null) {
+            array = new long[VOXELS];
+        }
+        return array;
+    }
+
+    private static void freeArray(long[] array) {
+        if (ARRAY_REUSE_CACHE.size() < ARRAY_REUSE_CACHE_SIZE) {
+            synchronized (ARRAY_REUSE_CACHE) {
+                ARRAY_REUSE_CACHE.add(array);
+            }
         }
     }
 
+    //Rough heap footprint, used for bounding the retention tier
+    long getMemoryUsage() {
+        if (this.data != null) {
+            return 128 + 48 * 8 + VOXELS * 8;
+        }
+        var palette = this.palette;
+        return palette == null ? 128 : 128 + 48 * 8 + palette.memoryUsage();
+    }
+
+    public int getNonAirCount() {
+        return this.nonAirCount;
+    }
+
+    public boolean isEmpty() {
+        return this.nonAirCount == 0;
+    }
+
+    //Bitmask over b of the columns along axis at row a that may contain a non air voxel, see occupancy for the layout,
+    // can have bits set for columns that have since become all air
+    public int getOccupiedColumns(int axis, int a) {
+        var occupancy = this.occupancy;
+        if (occupancy == null) {
+            return Mapper.isAir(this.uniformValue) ? 0 : -1;
+        }
+        return (int) ((long) OCCUPANCY.getVolatile(occupancy, (axis<<4) | (a>>1)) >>> ((a&1)<<5));
+    }
+
+    private static long[] createOccupancy(boolean filled) {
+        var occupancy = new long[48];
+        if (filled) {
+            Arrays.fill(occupancy, -1L);
+        }
+        return occupancy;
+    }
+
+    private static void markOccupied(long[] occupancy, int x, int y, int z) {
+        OCCUPANCY.getAndBitwiseOr(occupancy, (x>>1), 1L<<(((x&1)<<5)|z));
+        OCCUPANCY.getAndBitwiseOr(occupancy, 16 | (x>>1), 1L<<(((x&1)<<5)|y));
+        OCCUPANCY.getAndBitwiseOr(occupancy, 32 | (y>>1), 1L<<(((y&1)<<5)|z));
+    }
+
+    //Only touches the metadata when a voxel changes between air and non air, the count is exact but occupancy bits are
+    // only ever set here, never cleared
+    private void updateOccupancy(int x, int y, int z, long oldId, long newId) {
+        boolean wasAir = Mapper.isAir(oldId);
+        if (wasAir == Mapper.isAir(newId)) {
+            return;
+        }
+        if (wasAir) {
+            NON_AIR_COUNT.getAndAdd(this, 1);
+            markOccupied(this.occupancy, x, y, z);
+        } else {
+            NON_AIR_COUNT.getAndAdd(this, -1);
+        }
+    }
+
+    //Rebuilds the metadata from a palette and an index per voxel
+    private void computeOccupancy(long[] values, int size, short[] indices) {
+        var nonAir = new boolean[size];
+        for (int i = 0; i < size; i++) {
+            nonAir[i] = !Mapper.isAir(values[i]);
+        }
+        var occupancy = new long[48];
+        int count = 0;
+        for (int i = 0; i < VOXELS; i++) {
+            if (nonAir[indices[i]]) {
+                count++;
+                markOccupied(occupancy, i&31, i>>>10, (i>>>5)&31);
+            }
+        }
+        this.occupancy = occupancy;
+        this.nonAirCount = count;
+    }
+
+    public boolean isUniform() {
+        return this.data == null && this.palette == null;
+    }
+
+    //Only valid while isUniform is true
+    public long getUniformValue() {
+        return this.uniformValue;
+    }
+
+    //Only used while loading, before the section is visible to anything else
+    void setUniform(long value) {
+        var array = this.data;
+        this.data = null;
+        this.palette = null;
+        if (array != null) {
+            freeArray(array);
+        }
+        this.uniformValue = value;
+        this.occupancy = null;
+        this.nonAirCount = Mapper.isAir(value) ? 0 : VOXELS;
+    }
+
+    //Only used while loading, sets the section from a palette and an index per voxel, picking the representation
+    void setFromPalette(long[] values, int size, short[] indices) {
+        if (size == 1) {
+            this.setUniform(values[0]);
+            return;
+        }
+        this.computeOccupancy(values, size, indices);
+        if (size <= MAX_PALETTE_SIZE) {
+            var palette = new Palette(Palette.bitsLog2For(size));
+            System.arraycopy(values, 0, palette.values, 0, size);
+            palette.size = size;
+            if (size > 16) {
+                palette.lookup = new Long2IntOpenHashMap(MAX_PALETTE_SIZE);
+                palette.lookup.defaultReturnValue(-1);
+                for (int i = 0; i < size; i++) {
+                    palette.lookup.put(values[i], i);
+                }
+            }
+            for (int i = 0; i < VOXELS; i++) {
+                palette.set(i, indices[i]);
+            }
+            var array = this.data;
+            this.data = null;
+            if (array != null) {
+                freeArray(array);
+            }
+            this.palette = palette;
+            return;
+        }
+        var array = this.data;
+        if (array == null) {
+            array = allocateArray();
+        }
+        for (int i = 0; i < VOXELS; i++) {
+            array[i] = values[indices[i]];
+        }
+        this.palette = null;
+        this.data = array;
+    }
+
+    //Writes the palette and an index per voxel, returns the palette size, the palette may contain values that are no
+    // longer used, the indices arent written for a uniform section (size 1), returns -1 if the section is a full array
+    // (read data directly instead)
+    int copyPaletteTo(long[] values, short[] indices) {
+        if (this.data != null) {
+            return -1;
+        }
+        synchronized (this) {
+            if (this.data != null) {
+                return -1;
+            }
+            var palette = this.palette;
+            if (palette == null) {
+                values[0] = this.uniformValue;
+                return 1;
+            }
+            System.arraycopy(palette.values, 0, values, 0, palette.size);
+            for (int i = 0; i < VOXELS; i++) {
+                indices[i] = (short) palette.get(i);
+            }
+            return palette.size;
+        }
+    }
+
+    //Switches to the full array, must hold the monitor
+    private long[] expandToArray() {
+        var array = allocateArray();
+        var palette = this.palette;
+        if (palette == null) {
+            this.occupancy = createOccupancy(!Mapper.isAir(this.uniformValue));
+            Arrays.fill(array, this.uniformValue);
+        } else {
+            palette.decodeTo(array);
+        }
+        this.data = array;
+        this.palette = null;
+        return array;
+    }
+
     @Override
     public int hashCode() {
         return ((x*1235641+y)*8127451+z)*918267913+lvl;
@@ -87,12 +438,12 @@ public final class WorldSection {
         }
         boolean isFreed = witness == 1;
         if (isFreed) {
-            if (ARRAY_REUSE_CACHE.size() < ARRAY_REUSE_CACHE_SIZE) {
-                synchronized (ARRAY_REUSE_CACHE) {
-                    ARRAY_REUSE_CACHE.add(this.data);
-                }
-            }
+            var array = this.data;
             this.data = null;
+            this.palette = null;
+            if (array != null) {
+                freeArray(array);
+            }
         }
         return isFreed;
     }
@@ -111,23 +462,96 @@ public final class WorldSection {
         return ((y&M)<<10)|((z&M)<<5)|(x&M);
     }
 
+    public void lockWrites() {
+        this.writeLock.lock();
+    }
+
+    public void unlockWrites() {
+        this.writeLock.unlock();
+    }
+
+    //Doesnt lock, a palette that is being replaced by the full array still holds valid (at worst slightly old) values,
+    // and data is set before palette is cleared so seeing no palette means data has to be checked again
+    public long get(int x, int y, int z) {
+        int idx = getIndex(x,y,z);
+        var array = this.data;
+        if (array != null) {
+            return array[idx];
+        }
+        var palette = this.palette;
+        if (palette != null) {
+            return palette.values[palette.get(idx)];
+        }
+        array = this.data;
+        if (array != null) {
+            return array[idx];
+        }
+        return this.uniformValue;
+    }
+
     public long set(int x, int y, int z, long id) {
         int idx = getIndex(x,y,z);
-        long old = this.data[idx];
-        this.data[idx] = id;
+        var array = this.data;
+        if (array == null) {
+            synchronized (this) {
+                array = this.data;
+                if (array == null) {
+                    var palette = this.palette;
+                    if (palette == null) {
+                        //Writing the same value keeps the section uniform
+                        if (id == this.uniformValue) {
+                            return id;
+                        }
+                        palette = new Palette(0);
+                        palette.indexOf(this.uniformValue);
+                        //The metadata has to exist before anything can see the section as non uniform
+                        this.occupancy = createOccupancy(!Mapper.isAir(this.uniformValue));
+                        this.palette = palette;
+                    }
+                    int index = palette.indexOf(id);
+                    if (index >= 0) {
+                        long old = palette.values[palette.get(idx)];
+                        palette.set(idx, index);
+                        this.updateOccupancy(x, y, z, old, id);
+                        return old;
+                    }
+                    //Palette overflowed
+                    array = this.expandToArray();
+                }
+            }
+        }
+        long old = array[idx];
+        array[idx] = id;
+        this.updateOccupancy(x, y, z, old, id);
         return old;
     }
 
     //Generates a copy of the data array, this is to help with atomic operations like rendering
     public long[] copyData() {
-        this.assertNotFree();
-        return Arrays.copyOf(this.data, this.data.length);
+        var copy = new long[VOXELS];
+        this.copyDataTo(copy);
+        return copy;
     }
 
     public void copyDataTo(long[] cache) {
         this.assertNotFree();
-        if (cache.length != this.data.length) throw new IllegalArgumentException();
-        System.arraycopy(this.data, 0, cache, 0, this.data.length);
+        if (cache.length != VOXELS) throw new IllegalArgumentException();
+        var array = this.data;
+        if (array == null) {
+            synchronized (this) {
+                array = this.data;
+                if (array == null) {
+                    var palette = this.palette;
+                    if (palette == null) {
+                        Arrays.fill(cache, this.uniformValue);
+                    } else {
+                        palette.decodeTo(cache);
+                    }
+                    return;
+                }
+            }
+        }
+        System.arraycopy(array, 0, cache, 0, array.length);
     }
 
     public boolean tryAcquire() {
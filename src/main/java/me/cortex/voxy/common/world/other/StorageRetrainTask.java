@@ -0,0 +1,115 @@
+package me.cortex.voxy.common.world.other;
+
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import me.cortex.voxy.common.storage.compressors.ZSTDDictCompressor;
+import me.cortex.voxy.common.storage.other.CompressionStorageAdaptor;
+import me.cortex.voxy.common.util.BufferPool;
+import me.cortex.voxy.common.world.WorldEngine;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.function.Consumer;
+
+//Trains new compression dictionaries from a random sample of the stored sections and then resaves every stored
+// section through the saving service so it gets recompressed with the new dictionary
+public class StorageRetrainTask implements Runnable {
+    private static final int MAX_SAVE_QUEUE = 1024;
+
+    private final WorldEngine world;
+    private final Consumer<String> statusCallback;
+    private volatile boolean running = true;
+
+    public StorageRetrainTask(WorldEngine world, Consumer<String> statusCallback) {
+        this.world = world;
+        this.statusCallback = statusCallback;
+    }
+
+    public static List<ZSTDDictCompressor> findDictionaryCompressors(WorldEngine world) {
+        List<ZSTDDictCompressor> compressors = new ArrayList<>();
+        for (var backend : world.storage.collectAllBackends()) {
+            if (backend instanceof CompressionStorageAdaptor compression && compression.getCompressor() instanceof ZSTDDictCompressor dictCompressor) {
+                compressors.add(dictCompressor);
+            }
+        }
+        return compressors;
+    }
+
+    public void stop() {
+        this.running = false;
+    }
+
+    @Override
+    public void run() {
+        try {
+            this.run0();
+        } catch (Exception e) {
+            System.err.println("Storage retrain failed");
+            e.printStackTrace();
+            this.statusCallback.accept("Storage retrain failed: " + e);
+        }
+    }
+
+    private void run0() {
+        var compressors = findDictionaryCompressors(this.world);
+        if (compressors.isEmpty()) {
+            this.statusCallback.accept("No dictionary compressor in the storage config");
+            return;
+        }
+        int sampleCount = 0;
+        for (var compressor : compressors) {
+            sampleCount = Math.max(sampleCount, compressor.getTrainingSampleCount());
+        }
+
+        //Reservoir sample over all the keys so the dictionary isnt trained on a single region or lod level
+        var sampleKeys = new LongArrayList();
+        var random = new Random();
+        long[] seen = new long[1];
+        int reservoirSize = sampleCount;
+        this.world.storage.iterateAllSections(false, (key, data) -> {
+            long index = seen[0]++;
+            if (index < reservoirSize) {
+                sampleKeys.add(key);
+            } else {
+                long slot = (long) (random.nextDouble() * (index + 1));
+                if (slot < reservoirSize) {
+                    sampleKeys.set((int) slot, key);
+                }
+            }
+            return this.running;
+        });
+        if (!this.running) return;
+
+        List<byte[]> samples = new ArrayList<>(sampleKeys.size());
+        var datas = this.world.storage.getSectionDataBatch(sampleKeys.toLongArray());
+        for (var data : datas) {
+            if (data == null) continue;
+            var sample = new byte[data.remaining()];
+            data.get(data.position(), sample);
+            samples.add(sample);
+            BufferPool.release(data);
+        }
+        for (var compressor : compressors) {
+            compressor.train(samples);
+        }
+        this.statusCallback.accept("Trained new compression dictionary from " + samples.size() + " sections, recompressing " + seen[0] + " sections");
+
+        //Resave everything through the normal save path, so it doesnt race with sections being edited and saved
+        long[] resaved = new long[1];
+        this.world.storage.iterateAllSections(false, (key, data) -> {
+            while (MAX_SAVE_QUEUE < this.world.savingService.getTaskCount() && this.running) {
+                try {
+                    Thread.sleep(10);
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+            var section = this.world.acquire(WorldEngine.getLevel(key), WorldEngine.getX(key), WorldEngine.getY(key), WorldEngine.getZ(key));
+            this.world.savingService.enqueueSave(section);
+            section.release();
+            resaved[0]++;
+            return this.running;
+        });
+        this.statusCallback.accept("Recompressed " + resaved[0] + " sections");
+    }
+}
@@ -6,8 +6,10 @@ import me.cortex.voxy.common.world.WorldEngine;
 import me.cortex.voxy.common.world.WorldSection;
 import net.minecraft.client.MinecraftClient;
 import net.minecraft.text.Text;
-import org.lwjgl.system.MemoryUtil;
+import me.cortex.voxy.common.util.BufferPool;
 
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 import java.util.concurrent.ConcurrentLinkedDeque;
 import java.util.concurrent.Semaphore;
 
@@ -15,6 +17,9 @@ import java.util.concurrent.Semaphore;
 // save to the db, this can be useful for just reducing the amount of thread pools in total
 // might have some issues with threading if the same section is saved from multiple threads?
 public class SectionSavingService {
+    //Max number of sections a worker will write to storage in one go
+    private static final int MAX_SAVE_BATCH = 16;
+
     private volatile boolean running = true;
     private final Thread[] workers;
 
@@ -37,24 +42,78 @@ public class SectionSavingService {
     }
 
     private void saveWorker() {
+        var sections = new WorldSection[MAX_SAVE_BATCH];
         while (running) {
             this.saveCounter.acquireUninterruptibly();
             if (!this.running) break;
-            var section = this.saveQueue.pop();
-            section.assertNotFree();
-            try {
-                section.inSaveQueue.set(false);
-                var saveData = SaveLoadSystem.serialize(section);
-                this.world.storage.setSectionData(section.key, saveData);
-                MemoryUtil.memFree(saveData);
-            } catch (Exception e) {
-                System.err.println(e);
-                MinecraftClient.getInstance().executeSync(()->MinecraftClient.getInstance().player.sendMessage(Text.literal("Voxy saver had an exception while executing please check logs and report error")));
+            sections[0] = this.saveQueue.pop();
+            //Grab any other pending saves so that they all get written to the storage in a single batch
+            int count = 1;
+            while (count < MAX_SAVE_BATCH && this.saveCounter.tryAcquire()) {
+                var section = this.saveQueue.poll();
+                if (section == null) {
+                    break;//Only happens when the permits were released for shutdown
+                }
+                sections[count++] = section;
+            }
+
+            var keys = new long[count];
+            var saveData = new ByteBuffer[count];
+            //Each section is serialized on its own so one bad section doesnt drop the rest of the batch
+            int valid = 0;
+            for (int i = 0; i < count; i++) {
+                var section = sections[i];
+                try {
+                    section.assertNotFree();
+                    section.inSaveQueue.set(false);
+                    keys[valid] = section.key;
+                    saveData[valid] = SaveLoadSystem.serialize(section, this.world.getIntegrityMode());
+                    valid++;
+                } catch (Exception e) {
+                    System.err.println("Failed to serialize section " + section.key);
+                    e.printStackTrace();
+                    this.reportError();
+                }
+            }
+            if (valid != 0) {
+                try {
+                    this.world.storage.setSectionDataBatch(valid == count ? keys : Arrays.copyOf(keys, valid), valid == count ? saveData : Arrays.copyOf(saveData, valid));
+                } catch (Exception e) {
+                    System.err.println("Batched section save failed, saving the sections individually");
+                    e.printStackTrace();
+                    //Fall back to writing them one at a time so only the sections that actually fail are lost
+                    for (int i = 0; i < valid; i++) {
+                        try {
+                            //The failed batch may have consumed some of the buffers
+                            saveData[i].rewind();
+                            this.world.storage.setSectionData(keys[i], saveData[i]);
+                        } catch (Exception e2) {
+                            System.err.println("Failed to save section " + keys[i]);
+                            e2.printStackTrace();
+                            this.reportError();
+                        }
+                    }
+                }
+            }
+            for (int i = 0; i < count; i++) {
+                if (saveData[i] != null) {
+                    BufferPool.release(saveData[i]);
+                }
+                sections[i].release();
+                sections[i] = null;
             }
-            section.release();
         }
     }
 
+    private void reportError() {
+        MinecraftClient.getInstance().execute(()->{
+            var player = MinecraftClient.getInstance().player;
+            if (player != null) {
+                player.sendMessage(Text.literal("Voxy saver had an exception while executing please check logs and report error"));
+            }
+        });
+    }
+
     public void enqueueSave(WorldSection section) {
         //If its not enqueued for saving then enqueue it
         if (!section.inSaveQueue.getAndSet(true)) {
@@ -83,10 +142,10 @@ public class SectionSavingService {
 
 
         int i = 0;
-        //Wait for all the saving to finish
+        //Wait for all the saving to finish, polled often since with a journaling storage the queue drains quickly
         while (this.saveCounter.availablePermits() != 0) {
-            try {Thread.sleep(500);} catch (InterruptedException e) {break;}
-            if (i++%10 == 0) {
+            try {Thread.sleep(10);} catch (InterruptedException e) {break;}
+            if (i++%500 == 0) {
                 System.out.println("Section saving shutdown has " + this.saveCounter.availablePermits() + " tasks remaining");
             }
         }
@@ -12,6 +12,7 @@ import net.minecraft.world.chunk.ChunkNibbleArray;
 import net.minecraft.world.chunk.WorldChunk;
 import net.minecraft.world.chunk.light.LightStorage;
 
+import java.util.ArrayList;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedDeque;
@@ -47,11 +48,13 @@ public class VoxelIngestService {
             try {
                 var chunk = this.ingestQueue.pop();
                 int i = chunk.getBottomSectionCoord() - 1;
+                //The whole column is inserted at once so the shared parent mips are only acquired and dirtied once
+                var updates = new ArrayList<VoxelizedSection>(chunk.getSectionArray().length);
                 for (var section : chunk.getSectionArray()) {
                     i++;
                     var lighting = this.captureLightMap.remove(ChunkSectionPos.from(chunk.getPos(), i).asLong());
                     if (section.isEmpty()) {
-                        this.world.insertUpdate(VoxelizedSection.createEmpty(chunk.getPos().x, i, chunk.getPos().z));
+                        updates.add(VoxelizedSection.createEmpty(chunk.getPos().x, i, chunk.getPos().z));
                     } else {
                         VoxelizedSection csec = WorldConversionFactory.convert(
                                 this.world.getMapper(),
@@ -76,9 +79,10 @@ public class VoxelIngestService {
                                 chunk.getPos().z
                         );
                         WorldConversionFactory.mipSection(csec, this.world.getMapper());
-                        this.world.insertUpdate(csec);
+                        updates.add(csec);
                     }
                 }
+                this.world.insertUpdates(updates);
             } catch (Exception e) {
                 System.err.println(e);
                 MinecraftClient.getInstance().executeSync(()->MinecraftClient.getInstance().player.sendMessage(Text.literal("Voxy ingester had an exception while executing please check logs and report error")));